@@ -37,10 +37,10 @@
     void nativeExit(java.lang.String);
     void nativeError(int, java.lang.String);
     void logPacket(eu.faircode.netguard.Packet);
-    void dnsResolved(eu.faircode.netguard.ResourceRecord);
-    boolean isDomainBlocked(java.lang.String);
+    void dnsResolved(int, eu.faircode.netguard.ResourceRecord[]);
     int getUidQ(int, int, java.lang.String, int, java.lang.String, int);
     eu.faircode.netguard.Allowed isAddressAllowed(eu.faircode.netguard.Packet);
+    int isAddressAllowedRaw(int, int, int, int, int, long, long, boolean);
     void accountUsage(eu.faircode.netguard.Usage);
 }
 
@@ -73,13 +73,10 @@ import org.xml.sax.helpers.DefaultHandler;
 import org.xmlpull.v1.XmlSerializer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -334,10 +331,12 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         } else {
             String last_import = prefs.getString("hosts_last_import", null);
             String last_download = prefs.getString("hosts_last_download", null);
+            String last_sources = prefs.getString("hosts_last_sources", null);
             if (last_import != null)
                 pref_hosts_import.setSummary(getString(R.string.msg_import_last, last_import));
             if (last_download != null)
-                pref_hosts_download.setSummary(getString(R.string.msg_download_last, last_download));
+                pref_hosts_download.setSummary(getString(R.string.msg_download_last, last_download) +
+                        (last_sources == null ? "" : "\n" + last_sources));
 
             // Handle hosts import
             // https://github.com/Free-Software-for-Android/AdAway/wiki/HostsSources
@@ -363,51 +362,46 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
             pref_hosts_download.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
                 @Override
                 public boolean onPreferenceClick(Preference preference) {
-                    final File tmp = new File(getFilesDir(), "hosts.tmp");
-                    final File hosts = new File(getFilesDir(), "hosts.txt");
-
-                    EditTextPreference pref_hosts_url = (EditTextPreference) screen.findPreference("hosts_url");
-                    String hosts_url = pref_hosts_url.getText();
-                    if ("https://www.netguard.me/hosts".equals(hosts_url))
-                        hosts_url = BuildConfig.HOSTS_FILE_URI;
-
-                    try {
-                        new DownloadTask(ActivitySettings.this, new URL(hosts_url), tmp, new DownloadTask.Listener() {
-                            @Override
-                            public void onCompleted() {
-                                if (hosts.exists())
-                                    hosts.delete();
-                                tmp.renameTo(hosts);
-
-                                String last = SimpleDateFormat.getDateTimeInstance().format(new Date().getTime());
-                                prefs.edit().putString("hosts_last_download", last).apply();
-
-                                if (running) {
-                                    pref_hosts_download.setSummary(getString(R.string.msg_download_last, last));
-                                    Toast.makeText(ActivitySettings.this, R.string.msg_downloaded, Toast.LENGTH_LONG).show();
-                                }
-
-                                ServiceSinkhole.reload("hosts file download", ActivitySettings.this, false);
+                    final List<String> uris = HostsSources.getUris(prefs);
+                    for (String uri : uris)
+                        Toast.makeText(ActivitySettings.this, getString(R.string.msg_downloading, uri), Toast.LENGTH_SHORT).show();
+
+                    new AsyncTask<Object, Object, Object>() {
+                        @Override
+                        protected Object doInBackground(Object... objects) {
+                            try {
+                                return HostsSources.update(ActivitySettings.this, uris);
+                            } catch (Throwable ex) {
+                                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                                return ex;
                             }
+                        }
 
-                            @Override
-                            public void onCancelled() {
-                                if (tmp.exists())
-                                    tmp.delete();
+                        @Override
+                        protected void onPostExecute(Object result) {
+                            if (result instanceof Throwable) {
+                                if (running)
+                                    Toast.makeText(ActivitySettings.this, ((Throwable) result).getMessage(), Toast.LENGTH_LONG).show();
+                                return;
                             }
 
-                            @Override
-                            public void onException(Throwable ex) {
-                                if (tmp.exists())
-                                    tmp.delete();
-
-                                if (running)
-                                    Toast.makeText(ActivitySettings.this, ex.getMessage(), Toast.LENGTH_LONG).show();
+                            HostsSources.Update update = (HostsSources.Update) result;
+                            String info = HostsSources.getInfo(update.sources);
+                            String last = SimpleDateFormat.getDateTimeInstance().format(new Date().getTime());
+                            prefs.edit()
+                                    .putString("hosts_last_download", last)
+                                    .putString("hosts_last_sources", info)
+                                    .apply();
+
+                            if (running) {
+                                pref_hosts_download.setSummary(getString(R.string.msg_download_last, last) + "\n" + info);
+                                Toast.makeText(ActivitySettings.this, R.string.msg_downloaded, Toast.LENGTH_LONG).show();
                             }
-                        }).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                    } catch (MalformedURLException ex) {
-                        Toast.makeText(ActivitySettings.this, ex.toString(), Toast.LENGTH_LONG).show();
-                    }
+
+                            if (update.changed)
+                                ServiceSinkhole.reloadHosts("hosts file download", ActivitySettings.this);
+                        }
+                    }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                     return true;
                 }
             });
@@ -433,6 +427,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         pref_technical_info.setIntent(INTENT_VPN_SETTINGS);
         pref_technical_info.setOnPreferenceClickListener(listener);
         pref_technical_network.setOnPreferenceClickListener(listener);
+        screen.findPreference("technical_latency").setOnPreferenceClickListener(listener);
         updateTechnicalInfo();
 
         markPro(screen.findPreference("theme"), ActivityPro.SKU_THEME);
@@ -869,9 +864,12 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         PreferenceScreen screen = getPreferenceScreen();
         Preference pref_technical_info = screen.findPreference("technical_info");
         Preference pref_technical_network = screen.findPreference("technical_network");
+        Preference pref_technical_latency = screen.findPreference("technical_latency");
 
         pref_technical_info.setSummary(Util.getGeneralInfo(this));
         pref_technical_network.setSummary(Util.getNetworkInfo(this));
+        pref_technical_latency.setSummary(ServiceSinkhole.getLatencyInfo() + "\r\n" +
+                "reverse dns " + DatabaseHelper.getInstance(this).getQNameInfo());
     }
 
     @Override
@@ -981,45 +979,18 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
         new AsyncTask<Object, Object, Throwable>() {
             @Override
             protected Throwable doInBackground(Object... objects) {
-                File hosts = new File(getFilesDir(), "hosts.txt");
-
-                FileOutputStream out = null;
-                InputStream in = null;
+                File hosts = new File(getFilesDir(), HostsIndex.HOSTS_FILE);
                 try {
-                    Log.i(TAG, "Reading URI=" + data.getData());
-                    ContentResolver resolver = getContentResolver();
-                    String[] streamTypes = resolver.getStreamTypes(data.getData(), "*/*");
-                    String streamType = (streamTypes == null || streamTypes.length == 0 ? "*/*" : streamTypes[0]);
-                    AssetFileDescriptor descriptor = resolver.openTypedAssetFileDescriptor(data.getData(), streamType, null);
-                    in = descriptor.createInputStream();
-                    out = new FileOutputStream(hosts, append);
-
-                    int len;
-                    long total = 0;
-                    byte[] buf = new byte[4096];
-                    while ((len = in.read(buf)) > 0) {
-                        out.write(buf, 0, len);
-                        total += len;
-                    }
-                    Log.i(TAG, "Copied bytes=" + total);
-
+                    // Appending merges with the current hosts file, dropping duplicates
+                    List<String> uris = new ArrayList<>();
+                    if (append && hosts.exists())
+                        uris.add(Uri.fromFile(hosts).toString());
+                    uris.add(data.getData().toString());
+                    HostsSources.update(ActivitySettings.this, uris);
                     return null;
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                     return ex;
-                } finally {
-                    if (out != null)
-                        try {
-                            out.close();
-                        } catch (IOException ex) {
-                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                        }
-                    if (in != null)
-                        try {
-                            in.close();
-                        } catch (IOException ex) {
-                            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                        }
                 }
             }
 
@@ -1036,7 +1007,7 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                             Toast.makeText(ActivitySettings.this, R.string.msg_completed, Toast.LENGTH_LONG).show();
                         }
 
-                        ServiceSinkhole.reload("hosts import", ActivitySettings.this, false);
+                        ServiceSinkhole.reloadHosts("hosts import", ActivitySettings.this);
                     } else
                         Toast.makeText(ActivitySettings.this, ex.toString(), Toast.LENGTH_LONG).show();
                 }
@@ -1385,7 +1356,8 @@ public class ActivitySettings extends AppCompatActivity implements SharedPrefere
                                     return;
                             }
 
-                            if ("hosts_last_import".equals(key) || "hosts_last_download".equals(key))
+                            if ("hosts_last_import".equals(key) || "hosts_last_download".equals(key) ||
+                                    "hosts_last_sources".equals(key))
                                 return;
                         }
 
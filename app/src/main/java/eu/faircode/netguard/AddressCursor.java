@@ -0,0 +1,164 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+
+// Renders binary address columns as text, so adapters and exports can keep using getString
+// Addresses are formatted like native code does (inet_ntop), so they can be compared with packet addresses
+public class AddressCursor extends CursorWrapper {
+    private final boolean[] address;
+
+    public AddressCursor(Cursor cursor, String... columns) {
+        super(cursor);
+        address = new boolean[cursor.getColumnCount()];
+        for (String column : columns) {
+            int index = cursor.getColumnIndex(column);
+            if (index >= 0)
+                address[index] = true;
+        }
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (address[columnIndex] && super.getType(columnIndex) == FIELD_TYPE_BLOB)
+            return format(super.getBlob(columnIndex));
+        return super.getString(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        if (address[columnIndex] && super.getType(columnIndex) == FIELD_TYPE_BLOB)
+            return FIELD_TYPE_STRING;
+        return super.getType(columnIndex);
+    }
+
+    // Returns null if the text is not a numeric address, never does a name lookup
+    // IPv4 addresses should be a complete dotted quad, IPv6 addresses are always 16 bytes
+    public static byte[] parse(String text) {
+        if (text == null || text.isEmpty())
+            return null;
+        if (text.indexOf(':') < 0)
+            return parse4(text);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!(c == '.' || c == ':' ||
+                    (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')))
+                return null;
+        }
+        if (!Util.isNumericAddress(text))
+            return null;
+
+        byte[] addr;
+        try {
+            addr = InetAddress.getByName(text).getAddress();
+        } catch (UnknownHostException ignored) {
+            return null;
+        }
+
+        // IPv4-mapped addresses are returned as IPv4 addresses
+        if (addr.length == 4) {
+            byte[] mapped = new byte[16];
+            mapped[10] = (byte) 0xff;
+            mapped[11] = (byte) 0xff;
+            System.arraycopy(addr, 0, mapped, 12, 4);
+            addr = mapped;
+        }
+        return addr;
+    }
+
+    private static byte[] parse4(String text) {
+        byte[] addr = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = (i < text.length() ? text.charAt(i) : '.');
+            if (c >= '0' && c <= '9') {
+                // No leading zeros, like inet_pton
+                if (value == 0)
+                    return null;
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    return null;
+            } else if (c == '.' && value >= 0 && part < 4) {
+                addr[part++] = (byte) value;
+                value = -1;
+            } else
+                return null;
+        }
+        return (part == 4 ? addr : null);
+    }
+
+    public static String format(byte[] addr) {
+        if (addr == null)
+            return null;
+        if (addr.length == 4)
+            return (addr[0] & 0xFF) + "." + (addr[1] & 0xFF) + "." + (addr[2] & 0xFF) + "." + (addr[3] & 0xFF);
+        if (addr.length != 16)
+            return null;
+
+        int[] words = new int[8];
+        for (int i = 0; i < 8; i++)
+            words[i] = ((addr[i * 2] & 0xFF) << 8) | (addr[i * 2 + 1] & 0xFF);
+
+        // Longest run of at least two zero words is compressed, the first one if more
+        int base = -1;
+        int len = 0;
+        for (int i = 0; i < 8; i++)
+            if (words[i] == 0) {
+                int j = i;
+                while (j < 8 && words[j] == 0)
+                    j++;
+                if (j - i > len && j - i >= 2) {
+                    base = i;
+                    len = j - i;
+                }
+                i = j;
+            }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i == base) {
+                sb.append(i == 0 ? "::" : ":");
+                i += len - 1;
+                continue;
+            }
+
+            // Embedded IPv4 address, like inet_ntop
+            if (i == 6 && base == 0 &&
+                    (len == 6 || (len == 7 && words[7] != 0x0001) || (len == 5 && words[5] == 0xffff))) {
+                sb.append(addr[12] & 0xFF).append('.').append(addr[13] & 0xFF).append('.')
+                        .append(addr[14] & 0xFF).append('.').append(addr[15] & 0xFF);
+                break;
+            }
+
+            sb.append(Integer.toHexString(words[i]));
+            if (i < 7)
+                sb.append(':');
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    }
+}
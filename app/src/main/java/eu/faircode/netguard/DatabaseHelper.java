@@ -26,6 +26,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
@@ -38,6 +39,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -46,7 +48,11 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TAG = "NetGuard.Database";
 
     private static final String DB_NAME = "Netguard";
-    private static final int DB_VERSION = 21;
+    private static final int DB_VERSION = 24;
+
+    public static final int DNS_EXPIRE_BATCH = 256; // records
+
+    private static final String LOG_DADDR = renderAddress("daddr");
 
     private static boolean once = true;
     private static List<LogChangedListener> logChangedListeners = new ArrayList<>();
@@ -64,6 +70,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     private SharedPreferences prefs;
     private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private final ReverseDns reverseDns = new ReverseDns();
+    private SQLiteStatement qnameStatement = null; // guarded by itself once compiled
+
+    // Interned domain names by name, guarded by the write lock
+    private static final int MAX_NAMES = 4096;
+    private final Map<String, Long> nameIds = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return (size() > MAX_NAMES);
+        }
+    };
 
     static {
         hthread = new HandlerThread("DatabaseHelper");
@@ -121,6 +138,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         Log.i(TAG, "Creating database " + DB_NAME + " version " + DB_VERSION);
         createTableLog(db);
         createTableAccess(db);
+        createTableName(db);
         createTableDns(db);
         createTableForward(db);
         createTableApp(db);
@@ -140,9 +158,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 ", version INTEGER" +
                 ", protocol INTEGER" +
                 ", flags TEXT" +
-                ", saddr TEXT" +
+                ", saddr BLOB" +
                 ", sport INTEGER" +
-                ", daddr TEXT" +
+                ", daddr BLOB" +
                 ", dport INTEGER" +
                 ", dname TEXT" +
                 ", uid INTEGER" +
@@ -179,18 +197,30 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX idx_access_block ON access(block)");
     }
 
+    private void createTableName(SQLiteDatabase db) {
+        Log.i(TAG, "Creating name table");
+        db.execSQL("CREATE TABLE name (" +
+                " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
+                ", name TEXT NOT NULL" +
+                ");");
+        db.execSQL("CREATE UNIQUE INDEX idx_name ON name(name)");
+    }
+
+    // Names are ids in the name table, resources are 4 or 16 byte addresses
     private void createTableDns(SQLiteDatabase db) {
         Log.i(TAG, "Creating dns table");
         db.execSQL("CREATE TABLE dns (" +
                 " ID INTEGER PRIMARY KEY AUTOINCREMENT" +
                 ", time INTEGER NOT NULL" +
-                ", qname TEXT NOT NULL" +
-                ", aname TEXT NOT NULL" +
-                ", resource TEXT NOT NULL" +
+                ", qname INTEGER NOT NULL" +
+                ", aname INTEGER NOT NULL" +
+                ", resource BLOB NOT NULL" +
                 ", ttl INTEGER" +
+                ", expires INTEGER" +
                 ");");
         db.execSQL("CREATE UNIQUE INDEX idx_dns ON dns(qname, aname, resource)");
         db.execSQL("CREATE INDEX idx_dns_resource ON dns(resource)");
+        db.execSQL("CREATE INDEX idx_dns_expires ON dns(expires)");
     }
 
     private void createTableForward(SQLiteDatabase db) {
@@ -346,6 +376,28 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 createTableApp(db);
                 oldVersion = 21;
             }
+            if (oldVersion < 22) {
+                if (!columnExists(db, "dns", "expires"))
+                    db.execSQL("ALTER TABLE dns ADD COLUMN expires INTEGER");
+                db.execSQL("UPDATE dns SET expires = time + ttl");
+                db.execSQL("CREATE INDEX IF NOT EXISTS idx_dns_expires ON dns(expires)");
+                oldVersion = 22;
+            }
+            if (oldVersion < 23) {
+                createTableName(db);
+                db.execSQL("DROP INDEX IF EXISTS idx_dns");
+                db.execSQL("DROP INDEX IF EXISTS idx_dns_resource");
+                db.execSQL("DROP INDEX IF EXISTS idx_dns_expires");
+                db.execSQL("ALTER TABLE dns RENAME TO dns_text");
+                createTableDns(db);
+                migrateDns(db);
+                db.execSQL("DROP TABLE dns_text");
+                oldVersion = 23;
+            }
+            if (oldVersion < 24) {
+                migrateLog(db);
+                oldVersion = 24;
+            }
 
             if (oldVersion == DB_VERSION) {
                 db.setVersion(oldVersion);
@@ -358,7 +410,120 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
         } finally {
             db.endTransaction();
+            // Ids might have been rolled back
+            nameIds.clear();
+        }
+    }
+
+    private void migrateDns(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT OR IGNORE INTO dns (time, qname, aname, resource, ttl, expires) VALUES (?, ?, ?, ?, ?, ?)");
+        int count = 0;
+        try (Cursor cursor = db.rawQuery("SELECT time, qname, aname, resource, ttl, expires FROM dns_text", new String[]{})) {
+            while (cursor.moveToNext()) {
+                byte[] resource = AddressCursor.parse(cursor.getString(3));
+                if (resource == null)
+                    continue;
+                insert.clearBindings();
+                insert.bindLong(1, cursor.getLong(0));
+                insert.bindLong(2, getNameId(db, cursor.getString(1)));
+                insert.bindLong(3, getNameId(db, cursor.getString(2)));
+                insert.bindBlob(4, resource);
+                if (!cursor.isNull(4))
+                    insert.bindLong(5, cursor.getLong(4));
+                if (!cursor.isNull(5))
+                    insert.bindLong(6, cursor.getLong(5));
+                insert.executeInsert();
+                count++;
+            }
+        } finally {
+            insert.close();
+        }
+        Log.i(TAG, "Migrated dns records=" + count);
+    }
+
+    // Blobs are stored as is, whatever the type of the column
+    private void migrateLog(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE log SET saddr = ?, daddr = ? WHERE ID = ?");
+        int count = 0;
+        try (Cursor cursor = db.rawQuery("SELECT ID, saddr, daddr FROM log", new String[]{})) {
+            while (cursor.moveToNext()) {
+                update.clearBindings();
+                bindAddress(update, 1, cursor.getString(1));
+                bindAddress(update, 2, cursor.getString(2));
+                update.bindLong(3, cursor.getLong(0));
+                update.executeUpdateDelete();
+                count++;
+            }
+        } finally {
+            update.close();
         }
+        Log.i(TAG, "Migrated log records=" + count);
+    }
+
+    private static void bindAddress(SQLiteStatement statement, int index, String address) {
+        byte[] addr = AddressCursor.parse(address);
+        if (addr != null)
+            statement.bindBlob(index, addr);
+        else if (address != null)
+            statement.bindString(index, address);
+    }
+
+    // Caller should hold the write lock or be upgrading
+    private long getNameId(SQLiteDatabase db, String name) {
+        Long id = nameIds.get(name);
+        if (id != null)
+            return id;
+
+        // There is a unique index on name
+        try (Cursor cursor = db.rawQuery("SELECT ID FROM name WHERE name = ?", new String[]{name})) {
+            if (cursor.moveToFirst())
+                id = cursor.getLong(0);
+        }
+        if (id == null) {
+            ContentValues cv = new ContentValues();
+            cv.put("name", name);
+            id = db.insert("name", null, cv);
+            if (id < 0)
+                throw new IllegalStateException("Insert name failed");
+        }
+
+        nameIds.put(name, id);
+        return id;
+    }
+
+    // Address as a blob literal, which can be used in queries with text arguments
+    private static String toBlob(byte[] addr) {
+        StringBuilder sb = new StringBuilder("X'");
+        for (byte b : addr)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.append("'").toString();
+    }
+
+    // Text of a binary address column, for LIKE
+    // IPv6 addresses are rendered without zero compression, text values are used as they are
+    private static String renderAddress(String column) {
+        String hex = "hex(" + column + ")";
+        String digits = "'0123456789ABCDEF'";
+
+        StringBuilder v4 = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            if (i > 0)
+                v4.append(" || '.' || ");
+            v4.append("((instr(").append(digits).append(", substr(").append(hex).append(", ").append(i * 2 + 1).append(", 1)) - 1) * 16")
+                    .append(" + instr(").append(digits).append(", substr(").append(hex).append(", ").append(i * 2 + 2).append(", 1)) - 1)");
+        }
+
+        StringBuilder v6 = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            if (i > 0)
+                v6.append(" || ':' || ");
+            v6.append("coalesce(nullif(ltrim(lower(substr(").append(hex).append(", ").append(i * 4 + 1).append(", 4)), '0'), ''), '0')");
+        }
+
+        return "(CASE WHEN typeof(" + column + ") <> 'blob' THEN " + column +
+                " WHEN length(" + column + ") = 4 THEN " + v4 +
+                " ELSE " + v6 + " END)";
     }
 
     // Log
@@ -380,13 +545,22 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
                 cv.put("flags", packet.flags);
 
-                cv.put("saddr", packet.saddr);
+                // Addresses are stored in binary
+                byte[] saddr = AddressCursor.parse(packet.saddr);
+                if (saddr == null)
+                    cv.put("saddr", packet.saddr);
+                else
+                    cv.put("saddr", saddr);
                 if (packet.sport < 0)
                     cv.putNull("sport");
                 else
                     cv.put("sport", packet.sport);
 
-                cv.put("daddr", packet.daddr);
+                byte[] daddr = AddressCursor.parse(packet.daddr);
+                if (daddr == null)
+                    cv.put("daddr", packet.daddr);
+                else
+                    cv.put("daddr", daddr);
                 if (packet.dport < 0)
                     cv.putNull("dport");
                 else
@@ -490,7 +664,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 query += " OR allowed = 0";
             query += ")";
             query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{});
+            return new AddressCursor(db.rawQuery(query, new String[]{}), "saddr", "daddr");
         } finally {
             lock.readLock().unlock();
         }
@@ -501,11 +675,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is an index on daddr, dname, dport and uid
+            // Addresses are stored in binary, a complete address can use the index
+            byte[] addr = AddressCursor.parse(find);
             String query = "SELECT ID AS _id, *";
             query += " FROM log";
-            query += " WHERE daddr LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
+            query += " WHERE " + LOG_DADDR + " LIKE ? OR dname LIKE ? OR dport = ? OR uid = ?";
+            if (addr != null)
+                query += " OR daddr = " + toBlob(addr);
             query += " ORDER BY time DESC";
-            return db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find});
+            return new AddressCursor(db.rawQuery(query, new String[]{"%" + find + "%", "%" + find + "%", find, find}), "saddr", "daddr");
         } finally {
             lock.readLock().unlock();
         }
@@ -712,7 +890,8 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             // There is a segmented index on uid
             // There is no index on time for write performance
             String query = "SELECT a.ID AS _id, a.*";
-            query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN (SELECT d1.resource FROM dns d1 WHERE d1.qname = a.daddr)) count";
+            query += ", (SELECT COUNT(DISTINCT d.qname) FROM dns d WHERE d.resource IN";
+            query += "   (SELECT d1.resource FROM dns d1 JOIN name n ON n.ID = d1.qname WHERE n.name = a.daddr)) count";
             query += " FROM access a";
             query += " WHERE a.uid = ?";
             query += " ORDER BY a.time DESC";
@@ -780,60 +959,122 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
     // DNS
 
-    public boolean insertDns(ResourceRecord rr) {
+    // All records of a response in one transaction, aliases are not stored
+    public boolean insertDns(ResourceRecord[] rrs) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
+            SQLiteStatement update = db.compileStatement(
+                    "UPDATE dns SET time = ?, ttl = ?, expires = ? WHERE qname = ? AND aname = ? AND resource = ?");
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO dns (time, ttl, expires, qname, aname, resource) VALUES (?, ?, ?, ?, ?, ?)");
+            boolean committed = false;
             try {
-                int ttl = rr.TTL;
+                boolean changed = false;
+                for (ResourceRecord rr : rrs) {
+                    if (rr.Type == ResourceRecord.TYPE_CNAME)
+                        continue;
+
+                    byte[] resource = AddressCursor.parse(rr.Resource);
+                    if (resource == null) {
+                        Log.w(TAG, "DNS resource not numeric " + rr);
+                        continue;
+                    }
 
-                int min = Integer.parseInt(prefs.getString("ttl", "259200"));
-                if (ttl < min)
-                    ttl = min;
+                    long ttl = getDnsTTL(rr);
+
+                    // Both statements have the same parameters
+                    for (SQLiteStatement statement : new SQLiteStatement[]{update, insert}) {
+                        statement.clearBindings();
+                        statement.bindLong(1, rr.Time);
+                        statement.bindLong(2, ttl);
+                        statement.bindLong(3, rr.Time + ttl);
+                        statement.bindLong(4, getNameId(db, rr.QName));
+                        statement.bindLong(5, getNameId(db, rr.AName));
+                        statement.bindBlob(6, resource);
+                    }
 
-                ContentValues cv = new ContentValues();
-                cv.put("time", rr.Time);
-                cv.put("ttl", ttl * 1000L);
+                    // There is a unique index on qname, aname and resource
+                    int rows = update.executeUpdateDelete();
 
-                int rows = db.update("dns", cv, "qname = ? AND aname = ? AND resource = ?",
-                        new String[]{rr.QName, rr.AName, rr.Resource});
+                    if (rows == 0) {
+                        if (insert.executeInsert() == -1)
+                            Log.e(TAG, "Insert dns failed");
+                        else
+                            rows = 1;
+                    } else if (rows != 1)
+                        Log.e(TAG, "Update dns failed rows=" + rows);
 
-                if (rows == 0) {
-                    cv.put("qname", rr.QName);
-                    cv.put("aname", rr.AName);
-                    cv.put("resource", rr.Resource);
-
-                    if (db.insert("dns", null, cv) == -1)
-                        Log.e(TAG, "Insert dns failed");
-                    else
-                        rows = 1;
-                } else if (rows != 1)
-                    Log.e(TAG, "Update dns failed rows=" + rows);
+                    if (rows > 0)
+                        changed = true;
+
+                    reverseDns.put(rr.Resource, rr.QName, rr.Time + ttl, rr.Time);
+                }
 
                 db.setTransactionSuccessful();
+                committed = true;
 
-                return (rows > 0);
+                return changed;
             } finally {
+                update.close();
+                insert.close();
                 db.endTransaction();
+                // Ids of names inserted might have been rolled back
+                if (!committed)
+                    nameIds.clear();
             }
         } finally {
             lock.writeLock().unlock();
         }
     }
 
+    // Milliseconds, records are kept at least as long as configured
+    public long getDnsTTL(ResourceRecord rr) {
+        int min = Integer.parseInt(prefs.getString("ttl", "259200"));
+        return Math.max(rr.TTL, min) * 1000L;
+    }
+
     public void cleanupDns() {
+        // In batches, so other writers can go in between
+        long now = new Date().getTime();
+        int count = 0;
+        int deleted;
+        do {
+            deleted = expireDns(now, DNS_EXPIRE_BATCH);
+            count += deleted;
+        } while (deleted == DNS_EXPIRE_BATCH);
+
+        // Names no longer referenced
+        int names;
+        lock.writeLock().lock();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            names = db.delete("name",
+                    "ID NOT IN (SELECT qname FROM dns) AND ID NOT IN (SELECT aname FROM dns)",
+                    new String[]{});
+            nameIds.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Log.i(TAG, "Cleanup DNS records=" + count + " names=" + names);
+    }
+
+    // Deletes at most max expired records, in expiry order
+    public int expireDns(long now, int max) {
         lock.writeLock().lock();
         try {
             SQLiteDatabase db = this.getWritableDatabase();
             db.beginTransactionNonExclusive();
             try {
-                // There is no index on time for write performance
-                long now = new Date().getTime();
-                db.execSQL("DELETE FROM dns WHERE time + ttl < " + now);
-                Log.i(TAG, "Cleanup DNS");
+                // There is an index on expires
+                int deleted = db.delete("dns",
+                        "ID IN (SELECT ID FROM dns WHERE expires < ? ORDER BY expires LIMIT " + max + ")",
+                        new String[]{Long.toString(now)});
 
                 db.setTransactionSuccessful();
+                return deleted;
             } finally {
                 db.endTransaction();
             }
@@ -849,6 +1090,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             db.beginTransactionNonExclusive();
             try {
                 db.delete("dns", null, new String[]{});
+                db.delete("name", null, new String[]{});
+                nameIds.clear();
+                reverseDns.clear();
 
                 db.setTransactionSuccessful();
             } finally {
@@ -860,35 +1104,106 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     public String getQName(int uid, String ip) {
+        long now = new Date().getTime();
+        ReverseDns.QNameEntry entry = reverseDns.get(ip, now);
+        if (entry != null)
+            return entry.qname;
+
+        byte[] addr = AddressCursor.parse(ip);
+        if (addr == null) {
+            reverseDns.putNone(ip, now);
+            return null;
+        }
+
         lock.readLock().lock();
         try {
+            SQLiteStatement statement = getQNameStatement();
+            String result;
+            synchronized (statement) {
+                statement.bindBlob(1, addr);
+                statement.bindLong(2, now);
+                try {
+                    result = statement.simpleQueryForString();
+                } catch (SQLiteDoneException ignored) {
+                    result = null;
+                } finally {
+                    statement.clearBindings();
+                }
+            }
+
+            // The expiry time is a number, so the name follows the first space
+            if (result != null) {
+                int space = result.indexOf(' ');
+                String qname = result.substring(space + 1);
+                reverseDns.put(ip, qname, Long.parseLong(result.substring(0, space)), now);
+                return qname;
+            }
+            reverseDns.putNone(ip, now);
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private synchronized SQLiteStatement getQNameStatement() {
+        if (qnameStatement == null) {
             SQLiteDatabase db = this.getReadableDatabase();
-            // There is a segmented index on resource
-            String query = "SELECT d.qname";
+            // There is an index on resource
+            // Expired records would be cached with an expiry in the past
+            String query = "SELECT d.expires || ' ' || n.name";
             query += " FROM dns AS d";
-            query += " WHERE d.resource = '" + ip.replace("'", "''") + "'";
-            query += " ORDER BY d.qname";
+            query += " JOIN name AS n ON n.ID = d.qname";
+            query += " WHERE d.resource = ?";
+            query += " AND d.expires >= ?";
+            query += " ORDER BY n.name";
             query += " LIMIT 1";
             // There is no way to known for sure which domain name an app used, so just pick the first one
-            return db.compileStatement(query).simpleQueryForString();
-        } catch (SQLiteDoneException ignored) {
-            // Not found
-            return null;
+            qnameStatement = db.compileStatement(query);
+        }
+        return qnameStatement;
+    }
+
+    // Fill the reverse map with the most recent records
+    public void warmQNames() {
+        long now = new Date().getTime();
+        lock.readLock().lock();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            String query = "SELECT d.resource, n.name, d.expires";
+            query += " FROM dns AS d";
+            query += " JOIN name AS n ON n.ID = d.qname";
+            query += " WHERE d.expires >= " + now;
+            query += " ORDER BY d.time DESC";
+            query += " LIMIT 4096";
+            int count = 0;
+            try (Cursor cursor = new AddressCursor(db.rawQuery(query, new String[]{}), "resource")) {
+                while (cursor.moveToNext()) {
+                    reverseDns.put(cursor.getString(0), cursor.getString(1), cursor.getLong(2), now);
+                    count++;
+                }
+            }
+            Log.i(TAG, "Reverse DNS warmed records=" + count);
         } finally {
             lock.readLock().unlock();
         }
     }
 
+    public String getQNameInfo() {
+        return reverseDns.toString();
+    }
+
     public Cursor getAlternateQNames(String qname) {
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
-            String query = "SELECT DISTINCT d2.qname";
-            query += " FROM dns d1";
+            String query = "SELECT DISTINCT n2.name AS qname";
+            query += " FROM name n1";
+            query += " JOIN dns d1 ON d1.qname = n1.ID";
             query += " JOIN dns d2";
             query += "   ON d2.resource = d1.resource AND d2.id <> d1.id";
-            query += " WHERE d1.qname = ?";
-            query += " ORDER BY d2.qname";
+            query += " JOIN name n2 ON n2.ID = d2.qname";
+            query += " WHERE n1.name = ?";
+            query += " ORDER BY n2.name";
             return db.rawQuery(query, new String[]{qname});
         } finally {
             lock.readLock().unlock();
@@ -900,34 +1215,37 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = this.getReadableDatabase();
             // There is an index on resource
-            // There is a segmented index on qname
-            String query = "SELECT ID AS _id, *";
-            query += " FROM dns";
-            query += " ORDER BY resource, qname";
-            return db.rawQuery(query, new String[]{});
+            // Names and addresses are rendered as text for the adapter
+            String query = "SELECT d.ID AS _id, d.time, q.name AS qname, a.name AS aname, d.resource, d.ttl, d.expires";
+            query += " FROM dns AS d";
+            query += " JOIN name AS q ON q.ID = d.qname";
+            query += " JOIN name AS a ON a.ID = d.aname";
+            query += " ORDER BY d.resource, q.name";
+            return new AddressCursor(db.rawQuery(query, new String[]{}), "resource");
         } finally {
             lock.readLock().unlock();
         }
     }
 
-    public Cursor getAccessDns(String dname) {
+    public Cursor getAccessDns() {
         long now = new Date().getTime();
         lock.readLock().lock();
         try {
             SQLiteDatabase db = this.getReadableDatabase();
 
-            // There is a segmented index on dns.qname
+            // There is a unique index on name.name and a segmented index on dns.qname
             // There is an index on access.daddr and access.block
+            // The resource is a binary address
             String query = "SELECT a.uid, a.version, a.protocol, a.daddr, d.resource, a.dport, a.block, d.time, d.ttl";
             query += " FROM access AS a";
+            query += " LEFT JOIN name AS n";
+            query += "   ON n.name = a.daddr";
             query += " LEFT JOIN dns AS d";
-            query += "   ON d.qname = a.daddr";
+            query += "   ON d.qname = n.ID";
             query += " WHERE a.block >= 0";
-            query += " AND (d.time IS NULL OR d.time + d.ttl >= " + now + ")";
-            if (dname != null)
-                query += " AND a.daddr = ?";
+            query += " AND (d.time IS NULL OR d.expires >= " + now + ")";
 
-            return db.rawQuery(query, dname == null ? new String[]{} : new String[]{dname});
+            return db.rawQuery(query, new String[]{});
         } finally {
             lock.readLock().unlock();
         }
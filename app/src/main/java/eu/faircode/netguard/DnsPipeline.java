@@ -0,0 +1,223 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Resolved records are applied on a dedicated thread, so the tunnel and ring consumer threads only enqueue
+// Records of a query name still waiting are coalesced into one batch
+// Batches are applied in order, native code is told the sequence number of the last record applied
+// before the records are stored, so the database is not in the way of new flows held for them
+// When full, the oldest batch is not stored, but its addresses are still applied to the address rules
+public class DnsPipeline {
+    private static final String TAG = "NetGuard.DNS";
+
+    private static final int MAX_QUEUED = 1024; // query names
+
+    public interface Stage {
+        // Called from the offering thread, should not block
+        boolean isFiltered(String qname);
+
+        void filter(ResourceRecord[] rrs);
+
+        void applied(int seq);
+
+        void store(ResourceRecord[] rrs);
+    }
+
+    private static class Batch {
+        final int seq; // of the first records
+        final long queued = System.nanoTime();
+        final List<ResourceRecord> records = new ArrayList<>();
+
+        Batch(int seq) {
+            this.seq = seq;
+        }
+    }
+
+    private final Stage stage;
+    private final Map<String, Batch> queue = new LinkedHashMap<>(); // guarded by itself
+    private final Map<String, Batch> overflow = new LinkedHashMap<>(); // not stored, guarded by queue
+    private int offered = 0; // sequence number
+    private int applied = 0; // sequence number
+    private boolean running = false;
+    private Thread thread = null;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private long batches = 0;
+    private long coalesced = 0;
+    private long dropped = 0;
+    private long processed = 0;
+    private int maxDepth = 0;
+
+    public DnsPipeline(Stage stage) {
+        this.stage = stage;
+    }
+
+    public void start() {
+        synchronized (queue) {
+            running = true;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "DNS pipeline started");
+                while (true)
+                    try {
+                        if (!step())
+                            break;
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+                Log.i(TAG, "DNS pipeline stopped");
+            }
+        }, "NetGuard DNS");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+    }
+
+    // Queued records are still applied
+    public void stop() {
+        synchronized (queue) {
+            running = false;
+            queue.notifyAll();
+        }
+        if (thread != null)
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        thread = null;
+    }
+
+    // Never blocks
+    public void offer(int seq, ResourceRecord[] rrs) {
+        if (rrs.length == 0)
+            return;
+
+        synchronized (queue) {
+            offered = seq;
+            String qname = rrs[0].QName;
+            Batch batch = queue.get(qname);
+            if (batch == null) {
+                if (queue.size() >= MAX_QUEUED)
+                    evict();
+                batch = new Batch(seq);
+                queue.put(qname, batch);
+                batches++;
+                maxDepth = Math.max(maxDepth, queue.size());
+            } else
+                coalesced++;
+            Collections.addAll(batch.records, rrs);
+            queue.notifyAll();
+        }
+    }
+
+    // Only the addresses of the oldest batch that matter for the address rules are kept,
+    // merged per query name and address, which bounds them by the number of rules
+    private void evict() {
+        Iterator<Map.Entry<String, Batch>> it = queue.entrySet().iterator();
+        Map.Entry<String, Batch> oldest = it.next();
+        it.remove();
+        dropped++;
+
+        String qname = oldest.getKey();
+        if (!stage.isFiltered(qname))
+            return;
+
+        Batch merged = overflow.get(qname);
+        for (ResourceRecord rr : oldest.getValue().records) {
+            if (rr.Type != ResourceRecord.TYPE_A && rr.Type != ResourceRecord.TYPE_AAAA)
+                continue;
+            if (merged == null) {
+                merged = new Batch(oldest.getValue().seq);
+                overflow.put(qname, merged);
+            }
+            boolean replaced = false;
+            for (int i = 0; i < merged.records.size() && !replaced; i++)
+                if (merged.records.get(i).Type == rr.Type &&
+                        merged.records.get(i).Resource.equals(rr.Resource)) {
+                    merged.records.set(i, rr);
+                    replaced = true;
+                }
+            if (!replaced)
+                merged.records.add(rr);
+        }
+    }
+
+    private boolean step() throws InterruptedException {
+        Batch batch;
+        boolean store;
+        synchronized (queue) {
+            while (running && queue.isEmpty() && overflow.isEmpty())
+                queue.wait();
+            if (queue.isEmpty() && overflow.isEmpty())
+                return false;
+
+            // Evicted batches are older than all queued batches
+            store = overflow.isEmpty();
+            Iterator<Batch> it = (store ? queue : overflow).values().iterator();
+            batch = it.next();
+            it.remove();
+        }
+
+        latency.recordSince(batch.queued);
+        ResourceRecord[] rrs = batch.records.toArray(new ResourceRecord[0]);
+        try {
+            stage.filter(rrs);
+        } finally {
+            // Records of later batches might still be waiting
+            int seq;
+            synchronized (queue) {
+                processed++;
+                if (!overflow.isEmpty())
+                    applied = overflow.values().iterator().next().seq - 1;
+                else if (!queue.isEmpty())
+                    applied = queue.values().iterator().next().seq - 1;
+                else
+                    applied = offered;
+                seq = applied;
+            }
+            stage.applied(seq);
+        }
+
+        if (store)
+            stage.store(rrs);
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        synchronized (queue) {
+            return "queued " + queue.size() + "/" + MAX_QUEUED + " max " + maxDepth +
+                    " overflow " + overflow.size() +
+                    " batches " + batches + " coalesced " + coalesced + " dropped " + dropped +
+                    " applied " + processed +
+                    " queue " + latency;
+        }
+    }
+}
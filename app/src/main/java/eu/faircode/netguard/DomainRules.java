@@ -0,0 +1,108 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.faircode.netguard.PolicySnapshot.IPKey;
+
+// Per application rules for domain names, so resolved addresses can be added to the address rules
+// without querying the database
+// Filled by the thread preparing the rules together with the address rules, read only after being published
+public class DomainRules {
+    public static final DomainRules EMPTY = new DomainRules();
+
+    public static class Rule {
+        public final IPKey key;
+        public final boolean block;
+
+        Rule(IPKey key, boolean block) {
+            this.key = key;
+            this.block = block;
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Map<String, List<Rule>> rules = new HashMap<>();
+    private int size = 0;
+    private int[] hashes = null;
+
+    // Rows are joined with the resolved addresses, so the same rule can be added more than once
+    public void add(String dname, IPKey key, boolean block) {
+        List<Rule> list = rules.get(dname);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            rules.put(dname, list);
+        }
+        for (int i = 0; i < list.size(); i++)
+            if (list.get(i).key.equals(key)) {
+                // Like for addresses, blocking wins
+                if (block && !list.get(i).block)
+                    list.set(i, new Rule(key, true));
+                return;
+            }
+        list.add(new Rule(key, block));
+        size++;
+    }
+
+    public List<Rule> get(String dname) {
+        List<Rule> list = rules.get(dname);
+        return (list == null ? Collections.<Rule>emptyList() : list);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Hashes of the names with rules for native code, sorted as unsigned
+    public synchronized int[] getHashes() {
+        if (hashes == null) {
+            int[] h = new int[rules.size()];
+            int i = 0;
+            for (String dname : rules.keySet())
+                h[i++] = hash(dname) ^ Integer.MIN_VALUE;
+            Arrays.sort(h);
+            for (i = 0; i < h.length; i++)
+                h[i] ^= Integer.MIN_VALUE;
+            hashes = h;
+        }
+        return hashes;
+    }
+
+    // FNV-1a, same as native code
+    static int hash(String dname) {
+        int h = 0x811C9DC5;
+        for (byte b : dname.getBytes(UTF8))
+            h = (h ^ (b & 0xFF)) * 16777619;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "DomainRules domains=" + rules.size() + " rules=" + size;
+    }
+}
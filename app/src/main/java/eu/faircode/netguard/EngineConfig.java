@@ -0,0 +1,65 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.SharedPreferences;
+
+// Immutable copy of the settings used for packet decisions and logging
+// Rebuilt when a preference changes and published through a volatile reference
+public class EngineConfig {
+    public final boolean filter;
+    public final boolean filter_udp;
+    public final boolean log;
+    public final boolean log_app;
+    public final boolean track_usage;
+    public final boolean use_hosts;
+    public final boolean notify_access;
+    public final boolean manage_system;
+    public final boolean lockdown;
+    public final boolean lockdown_wifi;
+    public final boolean lockdown_other;
+
+    public EngineConfig(SharedPreferences prefs) {
+        this.filter = prefs.getBoolean("filter", false);
+        this.filter_udp = prefs.getBoolean("filter_udp", false);
+        this.log = prefs.getBoolean("log", false);
+        this.log_app = prefs.getBoolean("log_app", false);
+        this.track_usage = prefs.getBoolean("track_usage", false);
+        this.use_hosts = prefs.getBoolean("use_hosts", false);
+        this.notify_access = prefs.getBoolean("notify_access", false);
+        this.manage_system = prefs.getBoolean("manage_system", false);
+        this.lockdown = prefs.getBoolean("lockdown", false);
+        this.lockdown_wifi = prefs.getBoolean("lockdown_wifi", true);
+        this.lockdown_other = prefs.getBoolean("lockdown_other", true);
+    }
+
+    public boolean isLockedDown(boolean metered) {
+        return (lockdown && (metered ? lockdown_other : lockdown_wifi));
+    }
+
+    @Override
+    public String toString() {
+        return "filter=" + filter + "/" + filter_udp +
+                " log=" + log + "/" + log_app +
+                " usage=" + track_usage +
+                " hosts=" + use_hosts +
+                " lockdown=" + lockdown + "/" + lockdown_wifi + "/" + lockdown_other;
+    }
+}
@@ -0,0 +1,213 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+// Consumer side of the event ring filled by the native tunnel thread, see ring.c
+// Packets to log, usage to account and resolved names are delivered on the consumer thread
+public class EventRing {
+    private static final String TAG = "NetGuard.Ring";
+
+    private static final int SIZE = 256 * 1024; // bytes
+    private static final int HEADER = 64; // bytes
+    private static final int WAIT = 1000; // milliseconds
+
+    private static final int TYPE_PAD = 0;
+    private static final int TYPE_PACKET = 1;
+    private static final int TYPE_USAGE = 2;
+    private static final int TYPE_RESOLVED = 3;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long context;
+    private final Listener listener;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private long tail = 0;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    private native boolean jni_ring_init(long context, ByteBuffer buffer);
+
+    private native long jni_ring_wait(long context, int timeout);
+
+    private native void jni_ring_release(long context, long tail);
+
+    private native void jni_ring_wakeup(long context);
+
+    public interface Listener {
+        void onPacket(Packet packet);
+
+        void onUsage(Usage usage);
+
+        // All records of one response, or of a part of a large one
+        // Records are applied in sequence number order, see DnsPipeline
+        void onResolved(int seq, ResourceRecord[] rrs);
+    }
+
+    public EventRing(long context, Listener listener) {
+        this.context = context;
+        this.listener = listener;
+        this.buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+
+        // Same calculation as native code
+        int capacity = 1;
+        while (capacity * 2 <= SIZE - HEADER)
+            capacity *= 2;
+        this.capacity = capacity;
+    }
+
+    // The buffer stays in use by native code until the context is done
+    public boolean start() {
+        if (!jni_ring_init(context, buffer)) {
+            Log.e(TAG, "Ring init failed");
+            return false;
+        }
+
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Ring consumer started");
+                while (running)
+                    try {
+                        long head = jni_ring_wait(context, WAIT);
+                        while (tail < head) {
+                            int off = (int) (tail & (capacity - 1));
+                            int length = buffer.getInt(HEADER + off + 4);
+                            if (length <= 0) {
+                                Log.e(TAG, "Invalid record length=" + length);
+                                tail = head;
+                            } else {
+                                // A record failing is skipped, else it would be read again and again
+                                try {
+                                    read(off);
+                                } catch (Throwable ex) {
+                                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                                }
+                                tail += length;
+                            }
+                            // Free space as soon as possible
+                            jni_ring_release(context, tail);
+                        }
+                    } catch (Throwable ex) {
+                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    }
+                Log.i(TAG, "Ring consumer stopped");
+            }
+        }, "NetGuard ring");
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        thread.start();
+        return true;
+    }
+
+    public void stop() {
+        running = false;
+        jni_ring_wakeup(context);
+        if (thread != null)
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+            }
+        thread = null;
+    }
+
+    // Decodes the record at the offset and hands it to the listener
+    private void read(int off) {
+        int pos = HEADER + off;
+        int type = buffer.getInt(pos);
+        int length = buffer.getInt(pos + 4);
+        pos += 8;
+
+        if (type == TYPE_PACKET) {
+            Packet packet = new Packet();
+            packet.time = buffer.getLong(pos);
+            packet.version = buffer.getInt(pos + 8);
+            packet.protocol = buffer.getInt(pos + 12);
+            packet.sport = buffer.getInt(pos + 16);
+            packet.dport = buffer.getInt(pos + 20);
+            packet.uid = buffer.getInt(pos + 24);
+            packet.allowed = (buffer.getInt(pos + 28) != 0);
+            pos += 32;
+            packet.flags = getString(pos);
+            pos += 2 + getStringLength(pos);
+            packet.saddr = getString(pos);
+            pos += 2 + getStringLength(pos);
+            packet.daddr = getString(pos);
+            pos += 2 + getStringLength(pos);
+            packet.data = getString(pos);
+            listener.onPacket(packet);
+
+        } else if (type == TYPE_USAGE) {
+            Usage usage = new Usage();
+            usage.Time = buffer.getLong(pos);
+            usage.Version = buffer.getInt(pos + 8);
+            usage.Protocol = buffer.getInt(pos + 12);
+            usage.DPort = buffer.getInt(pos + 16);
+            usage.Uid = buffer.getInt(pos + 20);
+            usage.Sent = buffer.getLong(pos + 24);
+            usage.Received = buffer.getLong(pos + 32);
+            usage.DAddr = getString(pos + 40);
+            listener.onUsage(usage);
+
+        } else if (type == TYPE_RESOLVED) {
+            long time = buffer.getLong(pos);
+            int count = buffer.getInt(pos + 8);
+            int seq = buffer.getInt(pos + 12);
+            pos += 16;
+            String qname = getString(pos);
+            pos += 2 + getStringLength(pos);
+            ResourceRecord[] rrs = new ResourceRecord[count];
+            for (int i = 0; i < count; i++) {
+                ResourceRecord rr = new ResourceRecord();
+                rr.Time = time;
+                rr.QName = qname;
+                rr.TTL = buffer.getInt(pos);
+                rr.Type = buffer.getInt(pos + 4);
+                pos += 8;
+                rr.AName = getString(pos);
+                pos += 2 + getStringLength(pos);
+                rr.Resource = getString(pos);
+                pos += 2 + getStringLength(pos);
+                rrs[i] = rr;
+            }
+            listener.onResolved(seq, rrs);
+
+        } else if (type != TYPE_PAD)
+            Log.w(TAG, "Unknown record type=" + type + " length=" + length);
+    }
+
+    private int getStringLength(int pos) {
+        return buffer.getShort(pos) & 0xFFFF;
+    }
+
+    private String getString(int pos) {
+        int len = getStringLength(pos);
+        byte[] bytes = new byte[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = buffer.get(pos + 2 + i);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,125 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Hashed timer wheel, items are kept in the slot of their expiry tick
+// Polling only looks at the slots of the ticks passed since the previous poll,
+// items more than one rotation ahead stay in their slot until their time has come
+// Items are compared with equals and scheduled once, at their latest expiry tick,
+// entries left behind in earlier slots are dropped when polled
+// The owner should still check if an item really expired
+public class ExpiryWheel<T> {
+    private static final int SLOTS = 512; // power of two
+
+    private static class Entry<T> {
+        final T item;
+        final long tick;
+        long expires;
+
+        Entry(T item, long tick, long expires) {
+            this.item = item;
+            this.tick = tick;
+            this.expires = expires;
+        }
+    }
+
+    private final long tick; // milliseconds
+    private final List<List<Entry<T>>> slots = new ArrayList<>(SLOTS);
+    private final Map<T, Entry<T>> scheduled = new HashMap<>();
+    private long current; // first tick not completely polled
+
+    public ExpiryWheel(long tick, long now) {
+        this.tick = tick;
+        this.current = now / tick;
+        for (int i = 0; i < SLOTS; i++)
+            slots.add(new ArrayList<Entry<T>>());
+    }
+
+    public synchronized void add(T item, long expires) {
+        // Expired items are returned by the next poll
+        long t = Math.max(expires / tick, current);
+
+        // Renewals within the same tick or to an earlier tick do not add an entry
+        Entry<T> entry = scheduled.get(item);
+        if (entry != null && entry.tick >= t) {
+            if (entry.tick == t)
+                entry.expires = Math.max(entry.expires, expires);
+            return;
+        }
+
+        entry = new Entry<>(item, t, expires);
+        slots.get((int) (t & (SLOTS - 1))).add(entry);
+        scheduled.put(item, entry);
+    }
+
+    // Returns at most max expired items, the remaining ones are returned by the next polls
+    public synchronized List<T> poll(long now, int max) {
+        List<T> expired = new ArrayList<>();
+        long last = now / tick;
+
+        // After a long sleep all slots need to be looked at once
+        if (last - current >= SLOTS)
+            current = last - SLOTS + 1;
+
+        while (current <= last) {
+            Iterator<Entry<T>> it = slots.get((int) (current & (SLOTS - 1))).iterator();
+            while (it.hasNext()) {
+                Entry<T> entry = it.next();
+                if (scheduled.get(entry.item) != entry)
+                    it.remove(); // rescheduled
+                else if (entry.expires <= now) {
+                    if (expired.size() >= max)
+                        return expired;
+                    expired.add(entry.item);
+                    it.remove();
+                    scheduled.remove(entry.item);
+                }
+            }
+
+            // The current tick can still get items
+            if (current == last)
+                break;
+            current++;
+        }
+
+        return expired;
+    }
+
+    public synchronized void clear() {
+        for (List<Entry<T>> slot : slots)
+            slot.clear();
+        scheduled.clear();
+    }
+
+    public synchronized int size() {
+        return scheduled.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExpiryWheel size=" + scheduled.size() + " tick=" + tick + " ms";
+    }
+}
@@ -0,0 +1,486 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Blocked host names compiled from hosts.txt into a trie of reversed labels, which is memory mapped for lookups
+// Names ending in a shared suffix share the nodes of that suffix and each distinct label is stored once
+// Entries are exact names or wildcards like *.example.com, matching all subdomains of example.com
+// A blocked Bloom filter of all entries is checked first, so most names not blocked do not walk the trie
+// Layout, little endian, offsets in bytes:
+//   header: magic, version, count, nodes, offset of the labels,
+//     offset of the filter, number of filter blocks, number of bits set per entry
+//   nodes: offset of the label, index of the first child, number of children | flags << 30
+//     the root is node 0, children of a node are consecutive and sorted by label
+//   labels: length byte followed by the lower case label
+//   filter: blocks of 64 bytes, aligned to 64 bytes, each entry sets bits in a single block
+public class HostsIndex {
+    private static final String TAG = "NetGuard.Hosts";
+
+    public static final String HOSTS_FILE = "hosts.txt";
+    public static final String INDEX_FILE = "hosts.idx";
+
+    private static final int MAGIC = 0x4948474E; // NGHI
+    private static final int VERSION = 3;
+    private static final int HEADER = 32;
+    private static final int NODE = 12;
+    private static final int MAX_LABEL = 63;
+
+    private static final int FLAG_EXACT = 1;
+    private static final int FLAG_WILDCARD = 2;
+    private static final int MASK_CHILDREN = (1 << 30) - 1;
+
+    public static final double FILTER_FP = 0.01; // configured false positive rate
+    private static final int FILTER_BLOCK = 64; // bytes, a cache line
+    private static final int FILTER_BITS = (int) Math.ceil(-Math.log(FILTER_FP) / (Math.log(2) * Math.log(2))); // per entry
+    private static final int FILTER_K = (int) Math.round(FILTER_BITS * Math.log(2));
+    private static final long FILTER_WILDCARD = 0x9E3779B97F4A7C15L;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    public static final HostsIndex EMPTY = new HostsIndex(null, null, 0, 0, 0, 0);
+
+    private final File file;
+    private final ByteBuffer index;
+    private final int count;
+    private final int labels;
+    private final int filter;
+    private final int blocks;
+
+    private HostsIndex(File file, ByteBuffer index, int count, int labels, int filter, int blocks) {
+        this.file = file;
+        this.index = index;
+        this.count = count;
+        this.labels = labels;
+        this.filter = filter;
+        this.blocks = blocks;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getFilterSize() {
+        return blocks * FILTER_BLOCK;
+    }
+
+    // Native code maps the same file
+    public String getPath() {
+        return (file == null ? null : file.getAbsolutePath());
+    }
+
+    private static int lower(int c) {
+        return (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+    }
+
+    // Compare the label of a node with name[start, end)
+    private int compare(int node, String name, int start, int end) {
+        int offset = labels + index.getInt(HEADER + node * NODE);
+        int length = index.get(offset) & 0xff;
+        int n = end - start;
+        for (int i = 0; i < length && i < n; i++) {
+            int c = (index.get(offset + 1 + i) & 0xff) - lower(name.charAt(start + i));
+            if (c != 0)
+                return c;
+        }
+        return length - n;
+    }
+
+    private int findChild(int node, String name, int start, int end) {
+        int lo = index.getInt(HEADER + node * NODE + 4);
+        int hi = lo + (index.getInt(HEADER + node * NODE + 8) & MASK_CHILDREN) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(mid, name, start, end);
+            if (c < 0)
+                lo = mid + 1;
+            else if (c > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    // 64 bit FNV-1a of the lower case name, finalized like MurmurHash3
+    private static long hash(long h, boolean wildcard) {
+        if (wildcard)
+            h ^= FILTER_WILDCARD;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hash(byte[] name, boolean wildcard) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name)
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        return hash(h, wildcard);
+    }
+
+    private static long hash(String name, int start, int end, boolean wildcard) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++)
+            h = (h ^ (lower(name.charAt(i)) & 0xff)) * 0x100000001b3L;
+        return hash(h, wildcard);
+    }
+
+    // The block is selected by the high half of the hash, the bits by a second hash
+    private static void setFilter(ByteBuffer bb, int filter, int blocks, long h) {
+        int block = filter + (int) (((h >>> 32) * blocks) >>> 32) * FILTER_BLOCK;
+        long bits = hash(h, true);
+        for (int i = 0; i < FILTER_K; i++) {
+            int bit = (int) (bits >>> (i * 9)) & 511;
+            int word = block + (bit >>> 6) * 8;
+            bb.putLong(word, bb.getLong(word) | (1L << (bit & 63)));
+        }
+    }
+
+    private boolean testFilter(long h) {
+        int block = filter + (int) (((h >>> 32) * blocks) >>> 32) * FILTER_BLOCK;
+        long bits = hash(h, true);
+        for (int i = 0; i < FILTER_K; i++) {
+            int bit = (int) (bits >>> (i * 9)) & 511;
+            if ((index.getLong(block + (bit >>> 6) * 8) & (1L << (bit & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // False means name[0, end) is not blocked, the name itself or any parent domain being a wildcard
+    private boolean mightContain(String name, int end) {
+        if (testFilter(hash(name, 0, end, false)))
+            return true;
+        int dot = name.indexOf('.');
+        while (dot >= 0 && dot < end) {
+            if (testFilter(hash(name, dot + 1, end, true)))
+                return true;
+            dot = name.indexOf('.', dot + 1);
+        }
+        return false;
+    }
+
+    public boolean contains(String name) {
+        if (count == 0 || name == null)
+            return false;
+
+        // Host names are ASCII, other names are compared as UTF-8 bytes
+        int end = name.length();
+        for (int i = 0; i < end; i++)
+            if (name.charAt(i) > 0x7f) {
+                name = new String(name.getBytes(UTF8), LATIN1);
+                end = name.length();
+                break;
+            }
+
+        if (end > 0 && name.charAt(end - 1) == '.')
+            end--;
+
+        if (blocks > 0 && !mightContain(name, end))
+            return false;
+
+        // Walk the labels from right to left
+        int node = 0;
+        while (end > 0) {
+            int dot = name.lastIndexOf('.', end - 1);
+            node = findChild(node, name, dot + 1, end);
+            if (node < 0)
+                return false;
+
+            int flags = index.getInt(HEADER + node * NODE + 8) >>> 30;
+            if (dot < 0)
+                return ((flags & FLAG_EXACT) != 0);
+            if ((flags & FLAG_WILDCARD) != 0)
+                return true;
+            end = dot;
+        }
+        return false;
+    }
+
+    public static HostsIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after closing the file and after the file is replaced
+            ByteBuffer index = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (index.capacity() < HEADER ||
+                    index.getInt(0) != MAGIC || index.getInt(4) != VERSION)
+                throw new IOException("Invalid hosts index " + file);
+
+            int count = index.getInt(8);
+            int nodes = index.getInt(12);
+            int labels = index.getInt(16);
+            int filter = index.getInt(20);
+            int blocks = index.getInt(24);
+            if (count < 0 || nodes <= 0 || labels != HEADER + nodes * NODE || labels > index.capacity() ||
+                    filter < labels || blocks < 0 || index.getInt(28) != FILTER_K ||
+                    (long) filter + (long) blocks * FILTER_BLOCK > index.capacity())
+                throw new IOException("Corrupt hosts index " + file);
+
+            return new HostsIndex(file, index, count, labels, filter, blocks);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // An index older than the hosts file or of another version needs to be compiled again
+    public static boolean isStale(File hosts, File file) {
+        if (!file.exists() || file.lastModified() < hosts.lastModified())
+            return true;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return (raf.length() < HEADER ||
+                        Integer.reverseBytes(raf.readInt()) != MAGIC ||
+                        Integer.reverseBytes(raf.readInt()) != VERSION);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, ex.toString());
+            return true;
+        }
+    }
+
+    public static int compile(File hosts, File file) throws IOException {
+        Set<String> names = new HashSet<>();
+        BufferedReader br = new BufferedReader(new FileReader(hosts));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String name = parse(line);
+                if (name != null)
+                    names.add(name);
+            }
+        } finally {
+            br.close();
+        }
+        return write(names, file);
+    }
+
+    private static class Node {
+        byte[] label;
+        int flags = 0;
+        Map<String, Node> children = null;
+        int first;
+
+        Node(byte[] label) {
+            this.label = label;
+        }
+    }
+
+    private static final Comparator<Node> LABEL_ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            for (int i = 0; i < a.label.length && i < b.label.length; i++) {
+                int c = (a.label[i] & 0xff) - (b.label[i] & 0xff);
+                if (c != 0)
+                    return c;
+            }
+            return a.label.length - b.label.length;
+        }
+    };
+
+    static int write(Collection<String> names, File file) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // Build the trie, labels are interned
+        Map<String, byte[]> intern = new HashMap<>();
+        Node root = new Node(new byte[0]);
+        List<Long> hashes = new ArrayList<>();
+        int count = 0;
+        List<String> all = new ArrayList<>(names);
+        all.add("test.netguard.me");
+        for (String name : all) {
+            name = name.toLowerCase(Locale.ROOT);
+            if (name.endsWith("."))
+                name = name.substring(0, name.length() - 1);
+            int flags = FLAG_EXACT;
+            if (name.startsWith("*.")) {
+                flags = FLAG_WILDCARD;
+                name = name.substring(2);
+            }
+
+            String[] parts = name.split("\\.");
+            boolean valid = (name.length() > 0);
+            for (String part : parts)
+                if (part.length() == 0 || part.getBytes(UTF8).length > MAX_LABEL)
+                    valid = false;
+            if (!valid) {
+                Log.i(TAG, "Invalid host name " + name);
+                continue;
+            }
+
+            Node node = root;
+            for (int i = parts.length - 1; i >= 0; i--) {
+                if (node.children == null)
+                    node.children = new HashMap<>();
+                Node child = node.children.get(parts[i]);
+                if (child == null) {
+                    byte[] label = intern.get(parts[i]);
+                    if (label == null) {
+                        label = parts[i].getBytes(UTF8);
+                        intern.put(parts[i], label);
+                    }
+                    child = new Node(label);
+                    node.children.put(parts[i], child);
+                }
+                node = child;
+            }
+            if ((node.flags & flags) == 0) {
+                count++;
+                hashes.add(hash(name.getBytes(UTF8), flags == FLAG_WILDCARD));
+            }
+            node.flags |= flags;
+        }
+
+        // Number the nodes breadth first, so children are consecutive
+        List<Node> order = new ArrayList<>();
+        order.add(root);
+        for (int i = 0; i < order.size(); i++) {
+            Node node = order.get(i);
+            node.first = order.size();
+            if (node.children != null) {
+                Node[] children = node.children.values().toArray(new Node[0]);
+                Arrays.sort(children, LABEL_ORDER);
+                order.addAll(Arrays.asList(children));
+            }
+        }
+
+        // Labels are stored once
+        Map<byte[], Integer> offsets = new HashMap<>();
+        int size = 0;
+        for (byte[] label : intern.values()) {
+            offsets.put(label, size);
+            size += 1 + label.length;
+        }
+        offsets.put(root.label, size);
+        size += 1;
+
+        int labels = HEADER + order.size() * NODE;
+        int filter = (labels + size + FILTER_BLOCK - 1) / FILTER_BLOCK * FILTER_BLOCK;
+        int blocks = (int) Math.max(1, ((long) hashes.size() * FILTER_BITS + FILTER_BLOCK * 8 - 1) / (FILTER_BLOCK * 8));
+        ByteBuffer bb = ByteBuffer.allocate(filter + blocks * FILTER_BLOCK).order(ByteOrder.LITTLE_ENDIAN);
+        bb.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(order.size()).putInt(labels)
+                .putInt(filter).putInt(blocks).putInt(FILTER_K);
+        bb.position(HEADER);
+        for (Node node : order) {
+            int children = (node.children == null ? 0 : node.children.size());
+            bb.putInt(offsets.get(node.label)).putInt(node.first).putInt(children | (node.flags << 30));
+        }
+        for (Map.Entry<byte[], Integer> label : offsets.entrySet()) {
+            bb.position(labels + label.getValue());
+            bb.put((byte) label.getKey().length).put(label.getKey());
+        }
+        for (long h : hashes)
+            setFilter(bb, filter, blocks, h);
+
+        // Replace atomically, existing mappings keep the previous index
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(bb.array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
+
+        Log.i(TAG, count + " hosts compiled into " + order.size() + " nodes " +
+                intern.size() + " labels " + bb.capacity() + " bytes" +
+                " filter " + blocks * FILTER_BLOCK + " bytes fp " + FILTER_FP +
+                " in " + (System.currentTimeMillis() - start) + " ms");
+        return count;
+    }
+
+    // Lines have the form: address name [# comment]
+    static String parse(String line) {
+        int end = line.indexOf('#');
+        if (end < 0)
+            end = line.length();
+
+        int words = 0;
+        int nameStart = 0;
+        int nameEnd = 0;
+        int i = 0;
+        while (i < end) {
+            while (i < end && Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (i == end)
+                break;
+            int s = i;
+            while (i < end && !Character.isWhitespace(line.charAt(i)))
+                i++;
+            if (++words == 2) {
+                nameStart = s;
+                nameEnd = i;
+            }
+        }
+
+        if (words == 2)
+            return line.substring(nameStart, nameEnd);
+        if (words > 0)
+            Log.i(TAG, "Invalid hosts file line: " + line);
+        return null;
+    }
+
+    // Compile the hosts file in the given directory, if any
+    public static void update(File dir) {
+        File hosts = new File(dir, HOSTS_FILE);
+        File file = new File(dir, INDEX_FILE);
+        try {
+            if (hosts.exists())
+                compile(hosts, file);
+            else if (file.exists())
+                file.delete();
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Blocked host names from several hosts files, fetched and parsed in parallel
+// and merged into a single deduplicated hosts file and index
+// The names of each source are cached, so unmodified sources are not downloaded again
+public class HostsSources {
+    private static final String TAG = "NetGuard.Sources";
+
+    private static final int MAX_THREADS = 4;
+    private static final int TIMEOUT = 30 * 1000; // milliseconds
+
+    private static final String PREFS = "hosts_sources";
+    private static final String CACHE_DIR = "hosts.d";
+
+    public static class Source {
+        public final String uri;
+        public int count = 0; // names in this source
+        public int added = 0; // names not in previous sources
+        public long time = 0; // fetch and parse, milliseconds
+        public boolean modified = true;
+        private String etag = null;
+        private long lastModified = 0;
+        private String hash = null;
+        private Set<String> names;
+
+        private Source(String uri) {
+            this.uri = uri;
+        }
+
+        @Override
+        public String toString() {
+            return uri + " " + count + "/" + added + " " + time + " ms" + (modified ? "" : " unchanged");
+        }
+    }
+
+    public static class Update {
+        public final List<Source> sources;
+        public int added = 0; // names not in the previous hosts file
+        public int removed = 0; // names of the previous hosts file dropped
+        public boolean changed = false; // hosts file and index replaced
+
+        private Update(List<Source> sources) {
+            this.sources = sources;
+        }
+    }
+
+    // The download URL setting holds one or more URIs separated by white space or commas
+    public static List<String> getUris(SharedPreferences prefs) {
+        List<String> uris = new ArrayList<>();
+        String hosts_url = prefs.getString("hosts_url", null);
+        if (hosts_url == null)
+            return uris;
+
+        for (String uri : hosts_url.split("[\\s,]+")) {
+            if (uri.length() == 0)
+                continue;
+            if ("https://www.netguard.me/hosts".equals(uri))
+                uri = BuildConfig.HOSTS_FILE_URI;
+            if (!uris.contains(uri))
+                uris.add(uri);
+        }
+        return uris;
+    }
+
+    // Replaces the hosts file and its index if all sources could be read and any name was added or removed
+    // Serialized, since the service and the settings can update concurrently
+    public static synchronized Update update(final Context context, List<String> uris) throws IOException {
+        long start = System.currentTimeMillis();
+        if (uris.size() == 0)
+            throw new IOException("No hosts sources");
+
+        final SharedPreferences state = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        final File cacheDir = new File(context.getFilesDir(), CACHE_DIR);
+        if (!cacheDir.exists())
+            cacheDir.mkdirs();
+
+        List<Source> sources = new ArrayList<>();
+        List<Future<Source>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_THREADS, uris.size()));
+        try {
+            for (String uri : uris) {
+                final Source source = new Source(uri);
+                sources.add(source);
+                futures.add(executor.submit(new Callable<Source>() {
+                    @Override
+                    public Source call() throws Exception {
+                        return fetch(context, source, state, cacheDir);
+                    }
+                }));
+            }
+
+            for (Future<Source> future : futures)
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                    throw new IOException(cause);
+                }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Merge in source order, so duplicates are attributed to the first source
+        Set<String> merged = new HashSet<>();
+        for (Source source : sources) {
+            int size = merged.size();
+            merged.addAll(source.names);
+            source.added = merged.size() - size;
+        }
+
+        File dir = context.getFilesDir();
+        File hosts = new File(dir, HostsIndex.HOSTS_FILE);
+        File index = new File(dir, HostsIndex.INDEX_FILE);
+        Update update = new Update(sources);
+
+        // Compare with the names currently compiled
+        Set<String> current = new HashSet<>();
+        if (hosts.exists())
+            read(hosts, current, true);
+        for (String name : merged)
+            if (!current.contains(name))
+                update.added++;
+        for (String name : current)
+            if (!merged.contains(name))
+                update.removed++;
+
+        if (update.added > 0 || update.removed > 0 || HostsIndex.isStale(hosts, index)) {
+            // Replace atomically, like the index
+            File tmp = new File(dir, "hosts.tmp");
+            FileOutputStream fos = new FileOutputStream(tmp);
+            Writer out = new OutputStreamWriter(fos, "UTF-8");
+            try {
+                for (Source source : sources)
+                    out.write("# " + source.uri + " " + source.count + "\n");
+                for (String name : merged)
+                    out.write("0.0.0.0 " + name + "\n");
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(hosts))
+                throw new IOException("Could not rename " + tmp + " to " + hosts);
+
+            // The index is written after the hosts file, so it is not stale
+            HostsIndex.write(merged, index);
+            update.changed = true;
+        }
+
+        // Configured sources not part of this update, like for an import, are remembered too
+        Set<String> kept = new HashSet<>(getUris(PreferenceManager.getDefaultSharedPreferences(context)));
+        for (Source source : sources)
+            kept.add(source.uri);
+
+        // Remember the sources only after the hosts file reflects them
+        SharedPreferences.Editor editor = state.edit();
+        for (String name : state.getAll().keySet())
+            if (!kept.contains(name.substring(name.indexOf(':') + 1)))
+                editor.remove(name);
+        Set<String> keys = new HashSet<>();
+        for (String uri : kept)
+            keys.add(getKey(uri));
+        for (Source source : sources) {
+            if (source.modified)
+                write(new File(cacheDir, getKey(source.uri)), source.names);
+            if (source.etag == null)
+                editor.remove("etag:" + source.uri);
+            else
+                editor.putString("etag:" + source.uri, source.etag);
+            if (source.lastModified > 0)
+                editor.putLong("modified:" + source.uri, source.lastModified);
+            else
+                editor.remove("modified:" + source.uri);
+            if (source.hash == null)
+                editor.remove("hash:" + source.uri);
+            else
+                editor.putString("hash:" + source.uri, source.hash);
+            source.names = null;
+        }
+        editor.apply();
+
+        File[] cached = cacheDir.listFiles();
+        if (cached != null)
+            for (File file : cached)
+                if (!keys.contains(file.getName()))
+                    file.delete();
+
+        for (Source source : sources)
+            Log.i(TAG, "Source " + source);
+        Log.i(TAG, merged.size() + " hosts merged from " + sources.size() + " sources" +
+                " added " + update.added + " removed " + update.removed + " changed " + update.changed +
+                " in " + (System.currentTimeMillis() - start) + " ms");
+
+        return update;
+    }
+
+    public static String getInfo(List<Source> sources) {
+        StringBuilder sb = new StringBuilder();
+        for (Source source : sources) {
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(source.toString());
+        }
+        return sb.toString();
+    }
+
+    private static String getKey(String uri) throws IOException {
+        try {
+            return toHex(MessageDigest.getInstance("SHA-1").digest(uri.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    private static Source fetch(Context context, Source source,
+                                SharedPreferences state, File cacheDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        // Conditional requests need the names of the previous response
+        File cache = new File(cacheDir, getKey(source.uri));
+        boolean cached = cache.exists();
+        String etag = (cached ? state.getString("etag:" + source.uri, null) : null);
+        long lastModified = (cached ? state.getLong("modified:" + source.uri, 0) : 0);
+        String hash = (cached ? state.getString("hash:" + source.uri, null) : null);
+        Log.i(TAG, "Reading " + source.uri + " etag=" + etag + " modified=" + lastModified);
+
+        Set<String> names = new HashSet<>();
+        URLConnection connection = null;
+        InputStream in = null;
+        try {
+            Uri uri = Uri.parse(source.uri);
+            if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+                ContentResolver resolver = context.getContentResolver();
+                String[] streamTypes = resolver.getStreamTypes(uri, "*/*");
+                String streamType = (streamTypes == null || streamTypes.length == 0 ? "*/*" : streamTypes[0]);
+                AssetFileDescriptor descriptor = resolver.openTypedAssetFileDescriptor(uri, streamType, null);
+                if (descriptor == null)
+                    throw new IOException("No content " + uri);
+                in = descriptor.createInputStream();
+            } else if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()))
+                in = new FileInputStream(new File(uri.getPath()));
+            else {
+                connection = new URL(source.uri).openConnection();
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                if (etag != null)
+                    connection.setRequestProperty("If-None-Match", etag);
+                if (lastModified > 0)
+                    connection.setIfModifiedSince(lastModified);
+                connection.connect();
+
+                if (connection instanceof HttpURLConnection) {
+                    HttpURLConnection httpConnection = (HttpURLConnection) connection;
+                    int code = httpConnection.getResponseCode();
+                    if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached) {
+                        read(cache, names, false);
+                        source.modified = false;
+                        source.etag = etag;
+                        source.lastModified = lastModified;
+                        source.hash = hash;
+                        return done(source, names, start);
+                    }
+                    if (code != HttpURLConnection.HTTP_OK)
+                        throw new IOException(source.uri + " " + code + " " + httpConnection.getResponseMessage());
+                }
+
+                source.etag = connection.getHeaderField("ETag");
+                source.lastModified = connection.getLastModified();
+                in = connection.getInputStream();
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IOException(ex);
+            }
+            in = new DigestInputStream(in, digest);
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                String name = HostsIndex.parse(line);
+                if (name != null) {
+                    name = name.toLowerCase(Locale.ROOT);
+                    if (name.endsWith("."))
+                        name = name.substring(0, name.length() - 1);
+                    if (name.length() > 0)
+                        names.add(name);
+                }
+            }
+
+            // Same content, the cached names can be kept
+            source.hash = toHex(digest.digest());
+            source.modified = !source.hash.equals(hash);
+        } finally {
+            if (in != null)
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+            if (connection instanceof HttpURLConnection)
+                ((HttpURLConnection) connection).disconnect();
+        }
+
+        return done(source, names, start);
+    }
+
+    private static Source done(Source source, Set<String> names, long start) {
+        source.names = names;
+        source.count = names.size();
+        source.time = System.currentTimeMillis() - start;
+        return source;
+    }
+
+    // Hosts files have the form address name, cached names are one per line
+    private static void read(File file, Set<String> names, boolean hosts) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String name = (hosts ? HostsIndex.parse(line) : line);
+                if (name != null && name.length() > 0)
+                    names.add(name);
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    private static void write(File file, Set<String> names) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            for (String name : names)
+                out.write(name + "\n");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+}
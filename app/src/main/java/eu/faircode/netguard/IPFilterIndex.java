@@ -0,0 +1,289 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.net.InetAddress;
+
+import eu.faircode.netguard.PolicySnapshot.IPKey;
+import eu.faircode.netguard.PolicySnapshot.IPRule;
+
+// Per application address rules keyed on version, protocol, port, uid and the raw address
+// IPv4 addresses are stored in the low word, IPv6 addresses in two longs
+// Filled by the thread preparing the rules, read only after being published
+// Expired rules are skipped by the readers and left out by copy()
+// Added rules are kept in a small index on top of the shared index of a full rebuild,
+// so adding resolved addresses does not copy all rules
+public class IPFilterIndex {
+    private static final int MIN_OVERLAY = 64; // rules
+
+    private IPFilterIndex base = null; // never has a base itself
+    private int[] kinds; // 0 = free slot
+    private int[] uids;
+    private long[] his;
+    private long[] los;
+    private IPRule[] rules;
+    private int mask;
+    private int used = 0;
+    private int size = 0;
+
+    public IPFilterIndex() {
+        this(16);
+    }
+
+    public IPFilterIndex(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        kinds = new int[capacity];
+        uids = new int[capacity];
+        his = new long[capacity];
+        los = new long[capacity];
+        rules = new IPRule[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int kind(int version, int protocol, int dport) {
+        // Only TCP (6) and UDP (17) have port numbers
+        if (protocol != 6 && protocol != 17)
+            dport = 0;
+        return (version << 24) | ((protocol & 0xff) << 16) | (dport & 0xffff);
+    }
+
+    private static int hash(int kind, int uid, long hi, long lo) {
+        long h = kind * 31L + uid;
+        h = h * 0x9E3779B97F4A7C15L + hi;
+        h = h * 0x9E3779B97F4A7C15L + lo;
+        h ^= (h >>> 29);
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int find(int kind, int uid, long hi, long lo) {
+        int i = hash(kind, uid, hi, lo) & mask;
+        int k;
+        while ((k = kinds[i]) != 0) {
+            if (k == kind && uids[i] == uid && los[i] == lo && his[i] == hi)
+                return i;
+            i = (i + 1) & mask;
+        }
+        return ~i;
+    }
+
+    private void put(int kind, int uid, long hi, long lo, IPRule rule) {
+        int i = find(kind, uid, hi, lo);
+        if (i >= 0) {
+            if (rules[i] == null)
+                size++;
+            rules[i] = rule;
+            return;
+        }
+
+        i = ~i;
+        kinds[i] = kind;
+        uids[i] = uid;
+        his[i] = hi;
+        los[i] = lo;
+        rules[i] = rule;
+        used++;
+        size++;
+
+        // Keep the load factor at most 1/2
+        if (used * 2 > kinds.length)
+            rehash(kinds.length * 2);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKinds = kinds;
+        int[] oldUids = uids;
+        long[] oldHis = his;
+        long[] oldLos = los;
+        IPRule[] oldRules = rules;
+
+        kinds = new int[capacity];
+        uids = new int[capacity];
+        his = new long[capacity];
+        los = new long[capacity];
+        rules = new IPRule[capacity];
+        mask = capacity - 1;
+        used = 0;
+        size = 0;
+
+        for (int i = 0; i < oldKinds.length; i++)
+            if (oldKinds[i] != 0 && oldRules[i] != null && !oldRules[i].isExpired())
+                put(oldKinds[i], oldUids[i], oldHis[i], oldLos[i], oldRules[i]);
+    }
+
+    // Writer side
+
+    public void put(IPKey key, InetAddress address, IPRule rule) {
+        byte[] b = address.getAddress();
+        put(kind(key.version, key.protocol, key.dport), key.uid, high(b), low(b), rule);
+    }
+
+    public IPRule get(IPKey key, InetAddress address) {
+        byte[] b = address.getAddress();
+        int kind = kind(key.version, key.protocol, key.dport);
+        int i = find(kind, key.uid, high(b), low(b));
+        if (i >= 0)
+            return rules[i];
+        if (base == null)
+            return null;
+        i = base.find(kind, key.uid, high(b), low(b));
+        return (i < 0 ? null : base.rules[i]);
+    }
+
+    // Copy without expired rules, to be modified and published as a new snapshot
+    public IPFilterIndex copy() {
+        IPFilterIndex copy = new IPFilterIndex(size + (base == null ? 0 : base.size));
+        if (base != null)
+            base.copyTo(copy);
+        copyTo(copy);
+        return copy;
+    }
+
+    private void copyTo(IPFilterIndex copy) {
+        for (int i = 0; i < kinds.length; i++) {
+            IPRule rule = rules[i];
+            if (kinds[i] != 0 && rule != null && !rule.isExpired())
+                copy.put(kinds[i], uids[i], his[i], los[i], rule);
+        }
+    }
+
+    // New index with the added rules, sharing the rules of the last full rebuild
+    // The added rules are merged into a flat copy when they are no longer few compared to the shared rules
+    public IPFilterIndex withAdded(IPFilterIndex added) {
+        if (added.size == 0)
+            return this;
+
+        IPFilterIndex shared = (base == null ? this : base);
+        int overlay = (base == null ? 0 : size) + added.size;
+        if (overlay > Math.max(MIN_OVERLAY, shared.size / 8)) {
+            IPFilterIndex copy = copy();
+            added.copyTo(copy);
+            return copy;
+        }
+
+        IPFilterIndex result = new IPFilterIndex(overlay);
+        result.base = shared;
+        if (base != null)
+            copyTo(result);
+        added.copyTo(result);
+        return result;
+    }
+
+    // Reader side, no allocations
+
+    public IPRule lookup(int version, int protocol, int dport, int uid, int daddr4, long daddr6hi, long daddr6lo) {
+        long hi = (version == 4 ? 0 : daddr6hi);
+        long lo = (version == 4 ? daddr4 & 0xFFFFFFFFL : daddr6lo);
+        int kind = kind(version, protocol, dport);
+        int i = find(kind, uid, hi, lo);
+        if (i < 0) {
+            if (base == null)
+                return null;
+            i = base.find(kind, uid, hi, lo);
+            if (i < 0)
+                return null;
+            return active(base.rules[i]);
+        }
+        return active(rules[i]);
+    }
+
+    private static IPRule active(IPRule rule) {
+        return (rule != null && rule.isExpired() ? null : rule);
+    }
+
+    public int size() {
+        return size + (base == null ? 0 : base.size);
+    }
+
+    public int count() {
+        return (base == null ? 0 : base.count(this)) + count(null);
+    }
+
+    private int count(IPFilterIndex overlay) {
+        int count = 0;
+        for (int i = 0; i < kinds.length; i++)
+            if (isActive(i, overlay))
+                count++;
+        return count;
+    }
+
+    // Rules replaced by the overlay are not active
+    private boolean isActive(int i, IPFilterIndex overlay) {
+        IPRule rule = rules[i];
+        return (kinds[i] != 0 && rule != null && !rule.isExpired() &&
+                (overlay == null || overlay.find(kinds[i], uids[i], his[i], los[i]) < 0));
+    }
+
+    // Flat copy of the active rules for native code, arrays sized by count()
+    // keys: uid, version, protocol, port, block per rule; addresses: 16 bytes per rule
+    public void toArrays(int[] keys, byte[] addresses, long[] expires) {
+        int n = (base == null ? 0 : base.toArrays(keys, addresses, expires, 0, this));
+        toArrays(keys, addresses, expires, n, null);
+    }
+
+    private int toArrays(int[] keys, byte[] addresses, long[] expires, int n, IPFilterIndex overlay) {
+        for (int i = 0; i < kinds.length && n < expires.length; i++) {
+            IPRule rule = rules[i];
+            if (isActive(i, overlay)) {
+                int version = kinds[i] >>> 24;
+                keys[n * 5] = uids[i];
+                keys[n * 5 + 1] = version;
+                keys[n * 5 + 2] = (kinds[i] >> 16) & 0xff;
+                keys[n * 5 + 3] = kinds[i] & 0xffff;
+                keys[n * 5 + 4] = (rule.isBlocked() ? 1 : 0);
+                if (version == 4)
+                    for (int b = 0; b < 4; b++)
+                        addresses[n * 16 + b] = (byte) (los[i] >>> (24 - b * 8));
+                else
+                    for (int b = 0; b < 8; b++) {
+                        addresses[n * 16 + b] = (byte) (his[i] >>> (56 - b * 8));
+                        addresses[n * 16 + 8 + b] = (byte) (los[i] >>> (56 - b * 8));
+                    }
+                expires[n] = rule.getExpires();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static long high(byte[] b) {
+        if (b.length != 16)
+            return 0;
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[i] & 0xFF);
+        return v;
+    }
+
+    private static long low(byte[] b) {
+        long v = 0;
+        for (int i = (b.length == 16 ? 8 : 0); i < b.length; i++)
+            v = (v << 8) | (b[i] & 0xFF);
+        return v;
+    }
+
+    @Override
+    public String toString() {
+        return "IPFilterIndex size=" + size + " capacity=" + kinds.length +
+                (base == null ? "" : " base " + base);
+    }
+}
@@ -0,0 +1,121 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram with log-linear buckets in microseconds
+// Buckets 0-15 are exact, then four buckets per power of two, the same layout as native histogram.c
+public class LatencyHistogram {
+    public static final int BUCKETS = 96;
+    public static final int FIELDS = 3 + BUCKETS; // count, sum, max, buckets
+
+    private final AtomicLongArray values;
+
+    public LatencyHistogram() {
+        values = new AtomicLongArray(FIELDS);
+    }
+
+    private LatencyHistogram(long[] native_values, int offset) {
+        values = new AtomicLongArray(FIELDS);
+        for (int f = 0; f < FIELDS; f++)
+            values.set(f, native_values[offset + f]);
+    }
+
+    public static LatencyHistogram fromNative(long[] native_values, int index) {
+        return new LatencyHistogram(native_values, index * FIELDS);
+    }
+
+    private static int getBucket(long us) {
+        if (us < 16)
+            return (int) us;
+        int msb = 63 - Long.numberOfLeadingZeros(us);
+        int bucket = 16 + (msb - 4) * 4 + (int) ((us >> (msb - 2)) & 3);
+        return (bucket < BUCKETS ? bucket : BUCKETS - 1);
+    }
+
+    private static long getLowerBound(int bucket) {
+        if (bucket < 16)
+            return bucket;
+        int msb = 4 + (bucket - 16) / 4;
+        return (4L + (bucket - 16) % 4) << (msb - 2);
+    }
+
+    public void record(long us) {
+        if (us < 0)
+            us = 0;
+        values.incrementAndGet(0);
+        values.addAndGet(1, us);
+        long max = values.get(2);
+        while (us > max && !values.compareAndSet(2, max, us))
+            max = values.get(2);
+        values.incrementAndGet(3 + getBucket(us));
+    }
+
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000L);
+    }
+
+    public long getCount() {
+        return values.get(0);
+    }
+
+    public long getMax() {
+        return values.get(2);
+    }
+
+    // Upper bound of the bucket containing the percentile, not more than the maximum
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++)
+            count += values.get(3 + b);
+        if (count == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += values.get(3 + b);
+            if (seen >= rank && seen > 0)
+                return Math.min(getLowerBound(b + 1), getMax());
+        }
+        return getMax();
+    }
+
+    private static String format(long us) {
+        if (us < 1000)
+            return us + " us";
+        else if (us < 1000 * 1000)
+            return String.format(Locale.ROOT, "%.1f ms", us / 1000.0);
+        else
+            return String.format(Locale.ROOT, "%.1f s", us / 1000.0 / 1000.0);
+    }
+
+    @Override
+    public String toString() {
+        if (getCount() == 0)
+            return "-";
+        return "p50 " + format(getPercentile(50)) +
+                " p99 " + format(getPercentile(99)) +
+                " max " + format(getMax()) +
+                " n=" + getCount();
+    }
+}
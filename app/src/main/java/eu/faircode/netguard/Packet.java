@@ -27,6 +27,9 @@ public class Packet {
     public String saddr;
     public int sport;
     public String daddr;
+    public int daddr4; // raw IPv4 address
+    public long daddr6hi; // raw IPv6 address
+    public long daddr6lo;
     public int dport;
     public String data;
     public int uid;
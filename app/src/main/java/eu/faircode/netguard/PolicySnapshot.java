@@ -0,0 +1,193 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.List;
+
+// Immutable set of rules used to decide on packets
+// Published as a whole through a volatile reference, so packet decisions never wait for a reload
+public class PolicySnapshot {
+    // Per UID flags
+    public static final int UID_KNOWN = 1;
+    public static final int UID_ALLOWED = 2;
+    public static final int UID_LOCKDOWN = 4;
+
+    public final HostsIndex hostsBlocked;
+    public final UidTable uidFlags;
+    public final IPFilterIndex uidIPFilters;
+    public final DomainRules domainRules;
+    private final Forward[] forward;
+    private final UidTable forwardIndex; // port > index in forward
+    public final UidTable notify; // 0 = don't notify, missing = notify
+
+    public static final PolicySnapshot EMPTY = new PolicySnapshot(
+            HostsIndex.EMPTY,
+            new UidTable(),
+            new IPFilterIndex(),
+            DomainRules.EMPTY,
+            new Forward[0],
+            new UidTable(),
+            new UidTable());
+
+    private PolicySnapshot(
+            HostsIndex hostsBlocked,
+            UidTable uidFlags,
+            IPFilterIndex uidIPFilters,
+            DomainRules domainRules,
+            Forward[] forward,
+            UidTable forwardIndex,
+            UidTable notify) {
+        this.hostsBlocked = hostsBlocked;
+        this.uidFlags = uidFlags;
+        this.uidIPFilters = uidIPFilters;
+        this.domainRules = domainRules;
+        this.forward = forward;
+        this.forwardIndex = forwardIndex;
+        this.notify = notify;
+    }
+
+    // The maps and tables passed to the methods below are owned by the snapshot afterwards and should not be modified
+
+    public PolicySnapshot withHostsBlocked(HostsIndex hostsBlocked) {
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withUidFlags(UidTable uidFlags) {
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withUidIPFilters(IPFilterIndex uidIPFilters) {
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withUidIPFilters(IPFilterIndex uidIPFilters, DomainRules domainRules) {
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withForward(List<Forward> listForward) {
+        Forward[] forward = listForward.toArray(new Forward[0]);
+        UidTable forwardIndex = new UidTable(forward.length);
+        for (int i = 0; i < forward.length; i++)
+            forwardIndex.put(forward[i].dport, i);
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withNotify(UidTable notify) {
+        return new PolicySnapshot(hostsBlocked, uidFlags, uidIPFilters, domainRules, forward, forwardIndex, notify);
+    }
+
+    public PolicySnapshot withoutFilter() {
+        return EMPTY.withNotify(notify);
+    }
+
+    public Forward[] getForwards() {
+        return forward.clone();
+    }
+
+    public int getForwardIndex(int dport) {
+        return forwardIndex.get(dport, -1);
+    }
+
+    public Forward getForward(int dport) {
+        int index = forwardIndex.get(dport, -1);
+        return (index < 0 ? null : forward[index]);
+    }
+
+    public static class IPKey {
+        int version;
+        int protocol;
+        int dport;
+        int uid;
+
+        public IPKey(int version, int protocol, int dport, int uid) {
+            this.version = version;
+            this.protocol = protocol;
+            // Only TCP (6) and UDP (17) have port numbers
+            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
+            this.uid = uid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof IPKey))
+                return false;
+            IPKey other = (IPKey) obj;
+            return (this.version == other.version &&
+                    this.protocol == other.protocol &&
+                    this.dport == other.dport &&
+                    this.uid == other.uid);
+        }
+
+        @Override
+        public int hashCode() {
+            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
+        }
+
+        @Override
+        public String toString() {
+            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
+        }
+    }
+
+    public static class IPRule {
+        private final IPKey key;
+        private final String name;
+        private final boolean block;
+        private final long time;
+        private final long ttl;
+
+        public IPRule(IPKey key, String name, boolean block, long time, long ttl) {
+            this.key = key;
+            this.name = name;
+            this.block = block;
+            this.time = time;
+            this.ttl = ttl;
+        }
+
+        public boolean isBlocked() {
+            return this.block;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() > getExpires();
+        }
+
+        public long getExpires() {
+            return this.time + this.ttl * 2;
+        }
+
+        public IPRule withExpires(long time, long ttl) {
+            return new IPRule(this.key, this.name, this.block, time, ttl);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            IPRule other = (IPRule) obj;
+            return (this.block == other.block &&
+                    this.time == other.time &&
+                    this.ttl == other.ttl);
+        }
+
+        @Override
+        public String toString() {
+            return this.key + " " + this.name;
+        }
+    }
+}
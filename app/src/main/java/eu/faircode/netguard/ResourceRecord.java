@@ -24,7 +24,12 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class ResourceRecord {
+    public static final int TYPE_A = 1;
+    public static final int TYPE_CNAME = 5;
+    public static final int TYPE_AAAA = 28;
+
     public long Time;
+    public int Type;
     public String QName;
     public String AName;
     public String Resource;
@@ -0,0 +1,97 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Query name by address in front of the dns table, kept current by resolved records
+// Entries expire like the records they came from, the least recently used entries are evicted
+// Addresses without a query name are remembered for a short time, so they are not queried again
+public class ReverseDns {
+    private static final int MAX_ENTRIES = 4096;
+    private static final long NEGATIVE_TTL = 60 * 1000L; // milliseconds
+
+    static class QNameEntry {
+        final String qname; // null if none
+        final long expires;
+
+        QNameEntry(String qname, long expires) {
+            this.qname = qname;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, QNameEntry> entries = new LinkedHashMap<String, QNameEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, QNameEntry> eldest) {
+            return (size() > MAX_ENTRIES);
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Returns null if the address needs to be looked up
+    synchronized QNameEntry get(String address, long now) {
+        QNameEntry entry = entries.get(address);
+        if (entry != null && entry.expires < now) {
+            entries.remove(address);
+            entry = null;
+        }
+        if (entry == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return entry;
+    }
+
+    // Like the dns table query, the first query name in order is kept
+    synchronized void put(String address, String qname, long expires, long now) {
+        QNameEntry entry = entries.get(address);
+        if (entry != null && entry.expires >= now && entry.qname != null &&
+                entry.qname.compareTo(qname) < 0)
+            entries.put(address, new QNameEntry(entry.qname, Math.max(entry.expires, expires)));
+        else
+            entries.put(address, new QNameEntry(qname, expires));
+    }
+
+    synchronized void putNone(String address, long now) {
+        entries.put(address, new QNameEntry(null, now + NEGATIVE_TTL));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits.get();
+        long m = misses.get();
+        int size;
+        synchronized (this) {
+            size = entries.size();
+        }
+        return "hits " + h + " misses " + m +
+                " rate " + (h + m == 0 ? 0 : h * 100 / (h + m)) + "%" +
+                " entries " + size + "/" + MAX_ENTRIES;
+    }
+}
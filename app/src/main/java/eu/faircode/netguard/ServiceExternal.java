@@ -29,14 +29,6 @@ import android.util.Log;
 import androidx.core.app.NotificationCompat;
 import androidx.preference.PreferenceManager;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -61,72 +53,20 @@ public class ServiceExternal extends IntentService {
             if (ACTION_DOWNLOAD_HOSTS_FILE.equals(intent.getAction())) {
                 final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
-                String hosts_url = prefs.getString("hosts_url", null);
-                if ("https://www.netguard.me/hosts".equals(hosts_url))
-                    hosts_url = BuildConfig.HOSTS_FILE_URI;
-
-                File tmp = new File(getFilesDir(), "hosts.tmp");
-                File hosts = new File(getFilesDir(), "hosts.txt");
-
-                InputStream in = null;
-                OutputStream out = null;
-                URLConnection connection = null;
                 try {
-                    URL url = new URL(hosts_url);
-                    connection = url.openConnection();
-                    connection.connect();
-
-                    if (connection instanceof HttpURLConnection) {
-                        HttpURLConnection httpConnection = (HttpURLConnection) connection;
-                        if (httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK)
-                            throw new IOException(httpConnection.getResponseCode() + " " + httpConnection.getResponseMessage());
-                    }
-
-                    int contentLength = connection.getContentLength();
-                    Log.i(TAG, "Content length=" + contentLength);
-                    in = connection.getInputStream();
-                    out = new FileOutputStream(tmp);
-
-                    long size = 0;
-                    byte buffer[] = new byte[4096];
-                    int bytes;
-                    while ((bytes = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, bytes);
-                        size += bytes;
-                    }
-
-                    Log.i(TAG, "Downloaded size=" + size);
-
-                    if (hosts.exists())
-                        hosts.delete();
-                    tmp.renameTo(hosts);
+                    HostsSources.Update update = HostsSources.update(this, HostsSources.getUris(prefs));
 
                     String last = SimpleDateFormat.getDateTimeInstance().format(new Date().getTime());
-                    prefs.edit().putString("hosts_last_download", last).apply();
+                    prefs.edit()
+                            .putString("hosts_last_download", last)
+                            .putString("hosts_last_sources", HostsSources.getInfo(update.sources))
+                            .apply();
 
-                    ServiceSinkhole.reload("hosts file download", this, false);
+                    if (update.changed)
+                        ServiceSinkhole.reloadHosts("hosts file download", this);
 
                 } catch (Throwable ex) {
                     Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-
-                    if (tmp.exists())
-                        tmp.delete();
-                } finally {
-                    try {
-                        if (out != null)
-                            out.close();
-                    } catch (IOException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-                    try {
-                        if (in != null)
-                            in.close();
-                    } catch (IOException ex) {
-                        Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-
-                    if (connection instanceof HttpURLConnection)
-                        ((HttpURLConnection) connection).disconnect();
                 }
             }
         } finally {
@@ -82,7 +82,6 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.math.BigInteger;
@@ -107,7 +106,10 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.faircode.netguard.PolicySnapshot.IPKey;
+import eu.faircode.netguard.PolicySnapshot.IPRule;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -138,18 +140,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
     private static Object jni_lock = new Object();
     private static long jni_context = 0;
     private Thread tunnelThread = null;
+    private String last_tunnel = null;
     private ServiceSinkhole.Builder last_builder = null;
     private ParcelFileDescriptor vpn = null;
     private boolean temporarilyStopped = false;
 
-    private long last_hosts_modified = 0;
-    private Map<String, Boolean> mapHostsBlocked = new HashMap<>();
-    private Map<Integer, Boolean> mapUidAllowed = new HashMap<>();
-    private Map<Integer, Integer> mapUidKnown = new HashMap<>();
-    private final Map<IPKey, Map<InetAddress, IPRule>> mapUidIPFilters = new HashMap<>();
-    private Map<Integer, Forward> mapForward = new HashMap<>();
-    private Map<Integer, Boolean> mapNotify = new HashMap<>();
-    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock(true);
+    private long last_hosts_modified = 0; // hosts executor only
+    private volatile PolicySnapshot policy = PolicySnapshot.EMPTY;
+    private volatile EngineConfig config;
+    private static int generation = 0; // guarded by jni_lock
+    private HostsIndex pushedHosts = null; // guarded by jni_lock
+    private final Object policyLock = new Object(); // serializes writers only
+
+    private static final LatencyHistogram latencyAllowed = new LatencyHistogram();
+    private static final LatencyHistogram latencyQueue = new LatencyHistogram();
 
     private volatile Looper commandLooper;
     private volatile Looper logLooper;
@@ -186,11 +190,28 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private enum State {none, waiting, enforcing, stats}
 
-    public enum Command {run, start, reload, stop, stats, set, householding, watchdog}
+    public enum Command {run, start, reload, stop, stats, set, householding, watchdog, hosts}
 
     private static volatile PowerManager.WakeLock wlInstance = null;
 
     private ExecutorService executor = Executors.newCachedThreadPool();
+    private ExecutorService hostsExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger hostsSequence = new AtomicInteger();
+    private EventRing eventRing = null;
+    private static volatile DnsPipeline dnsPipeline = null;
+    private volatile int rebuilds = 0; // of the address rules
+    private int filteredRebuilds = 0; // DNS pipeline thread only
+
+    // Packed verdict, see netguard.h
+    private static final int VERDICT_ALLOWED = 1;
+    private static final int VERDICT_LOG = 2;
+    private static final int VERDICT_FORWARD_SHIFT = 8;
+
+    private static final long EXPIRE_TICK = 60 * 1000L; // milliseconds
+    private static final int EXPIRE_BATCH = 256; // rules
+
+    // Address rules by expiry time, so expired rules leave the filter without scanning it
+    private final ExpiryWheel<RuleExpiry> ruleExpiry = new ExpiryWheel<>(EXPIRE_TICK, System.currentTimeMillis());
 
     private static final String ACTION_HOUSE_HOLDING = "eu.faircode.netguard.HOUSE_HOLDING";
     private static final String ACTION_SCREEN_OFF_DELAYED = "eu.faircode.netguard.SCREEN_OFF_DELAYED";
@@ -206,12 +227,31 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private native void jni_clear(long context);
 
+    private native void jni_recheck(long context);
+
     private native int jni_get_mtu();
 
     private native int[] jni_get_stats(long context);
 
+    private native void jni_set_generation(long context, int generation, boolean cache);
+
+    private native void jni_set_hosts(long context, String path);
+
+    private native void jni_set_resolved(long context, int seq);
+
+    private native void jni_set_policy(long context,
+                                       boolean filter, boolean filter_udp, boolean log, int self,
+                                       int[] uids, int[] uid_flags,
+                                       int[] rule_keys, byte[] rule_addrs, long[] rule_expires,
+                                       int[] forwards, String[] forward_addrs,
+                                       int[] names);
+
+    private native void jni_add_rules(long context, int[] rule_keys, byte[] rule_addrs, long[] rule_expires);
+
     private static native void jni_pcap(String name, int record_size, int file_size);
 
+    private static native long[] jni_get_histograms();
+
     private native void jni_socks5(String addr, int port, String username, String password);
 
     private native void jni_done(long context);
@@ -243,6 +283,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         jni_pcap(pcap == null ? null : pcap.getAbsolutePath(), record_size, file_size);
     }
 
+    public static String getLatencyInfo() {
+        String[] names = new String[]{"handle_ip", "is_address_allowed", "get_uid", "dns_resolved", "is_domain_blocked"};
+        long[] values = jni_get_histograms();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++)
+            sb.append(names[i]).append(' ').append(LatencyHistogram.fromNative(values, i)).append("\r\n");
+        sb.append("isAddressAllowed ").append(latencyAllowed).append("\r\n");
+        sb.append("log queue ").append(latencyQueue).append("\r\n");
+        DnsPipeline pipeline = dnsPipeline;
+        sb.append("dns pipeline ").append(pipeline == null ? "-" : pipeline.toString());
+        return sb.toString();
+    }
+
     synchronized private static PowerManager.WakeLock getLock(Context context) {
         if (wlInstance == null) {
             PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
@@ -437,6 +491,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                         watchdog(intent);
                         break;
 
+                    case hosts:
+                        hosts();
+                        break;
+
                     default:
                         Log.e(TAG, "Unknown command=" + cmd);
                 }
@@ -574,8 +632,8 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
             } else {
                 if (vpn != null && prefs.getBoolean("filter", false) && builder.equals(last_builder)) {
-                    Log.i(TAG, "Native restart");
-                    stopNative(vpn);
+                    // Rules are swapped in place by startNative, existing sessions are rechecked
+                    Log.i(TAG, "Native reload");
 
                 } else {
                     last_builder = builder;
@@ -670,6 +728,13 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 checkUpdate();
         }
 
+        private void hosts() {
+            // Only the blocked hosts are replaced, rules and the tunnel are kept
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
+            if (vpn != null && prefs.getBoolean("filter", false))
+                prepareHostsBlocked();
+        }
+
         private void watchdog(Intent intent) {
             if (vpn == null) {
                 SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
@@ -781,6 +846,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         @Override
         public void handleMessage(Message msg) {
             try {
+                // Time spent waiting in the queue
+                latencyQueue.record((SystemClock.uptimeMillis() - msg.getWhen()) * 1000L);
+
                 switch (msg.what) {
                     case MSG_PACKET:
                         log((Packet) msg.obj, msg.arg1, msg.arg2 > 0);
@@ -805,9 +873,9 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
         private void log(Packet packet, int connection, boolean interactive) {
             // Get settings
-            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-            boolean log = prefs.getBoolean("log", false);
-            boolean log_app = prefs.getBoolean("log_app", false);
+            EngineConfig config = ServiceSinkhole.this.config;
+            boolean log = config.log;
+            boolean log_app = config.log_app;
 
             DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
 
@@ -824,21 +892,16 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 if (!(packet.protocol == 6 /* TCP */ || packet.protocol == 17 /* UDP */))
                     packet.dport = 0;
                 if (dh.updateAccess(packet, dname, -1)) {
-                    lock.readLock().lock();
-                    if (!mapNotify.containsKey(packet.uid) || mapNotify.get(packet.uid))
+                    if (policy.notify.get(packet.uid, 1) != 0)
                         showAccessNotification(packet.uid);
-                    lock.readLock().unlock();
                 }
             }
         }
 
         private void usage(Usage usage) {
             if (usage.Uid >= 0 && !(usage.Uid == 0 && usage.Protocol == 17 && usage.DPort == 53)) {
-                SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-                boolean filter = prefs.getBoolean("filter", false);
-                boolean log_app = prefs.getBoolean("log_app", false);
-                boolean track_usage = prefs.getBoolean("track_usage", false);
-                if (filter && log_app && track_usage) {
+                EngineConfig config = ServiceSinkhole.this.config;
+                if (config.filter && config.log_app && config.track_usage) {
                     DatabaseHelper dh = DatabaseHelper.getInstance(ServiceSinkhole.this);
                     String dname = dh.getQName(usage.Uid, usage.DAddr);
                     Log.i(TAG, "Usage account " + usage + " dname=" + dname);
@@ -1468,47 +1531,53 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         if (filter) {
             prepareUidAllowed(listAllowed, listRule);
             prepareHostsBlocked();
-            prepareUidIPFilters(null);
+            prepareUidIPFilters();
             prepareForwarding();
         } else {
-            lock.writeLock().lock();
-            mapUidAllowed.clear();
-            mapUidKnown.clear();
-            mapHostsBlocked.clear();
-            mapUidIPFilters.clear();
-            mapForward.clear();
-            lock.writeLock().unlock();
+            synchronized (policyLock) {
+                hostsSequence.incrementAndGet();
+                setPolicy(policy.withoutFilter());
+            }
         }
 
         if (log_app)
             prepareNotify(listRule);
         else {
-            lock.writeLock().lock();
-            mapNotify.clear();
-            lock.writeLock().unlock();
+            synchronized (policyLock) {
+                setPolicy(policy.withNotify(new UidTable()));
+            }
         }
 
         if (log || log_app || filter) {
             int prio = Integer.parseInt(prefs.getString("loglevel", Integer.toString(Log.WARN)));
             final int rcode = Integer.parseInt(prefs.getString("rcode", "3"));
-            if (prefs.getBoolean("socks5_enabled", false))
-                jni_socks5(
-                        prefs.getString("socks5_addr", ""),
-                        Integer.parseInt(prefs.getString("socks5_port", "0")),
-                        prefs.getString("socks5_username", ""),
-                        prefs.getString("socks5_password", ""));
-            else
-                jni_socks5("", 0, "", "");
+            final boolean fwd53 = (policy.getForward(53) != null);
+            boolean socks5 = prefs.getBoolean("socks5_enabled", false);
+            String socks5_addr = (socks5 ? prefs.getString("socks5_addr", "") : "");
+            int socks5_port = (socks5 ? Integer.parseInt(prefs.getString("socks5_port", "0")) : 0);
+            String socks5_username = (socks5 ? prefs.getString("socks5_username", "") : "");
+            String socks5_password = (socks5 ? prefs.getString("socks5_password", "") : "");
+
+            // Only settings the tunnel was started with require a restart
+            String tunnel = prio + "/" + rcode + "/" + fwd53 + "/" +
+                    socks5_addr + "/" + socks5_port + "/" + socks5_username + "/" + socks5_password;
+            if (tunnelThread != null && !tunnel.equals(last_tunnel)) {
+                Log.i(TAG, "Native restart");
+                stopNative(vpn);
+            }
 
             if (tunnelThread == null) {
+                jni_socks5(socks5_addr, socks5_port, socks5_username, socks5_password);
+
                 Log.i(TAG, "Starting tunnel thread context=" + jni_context);
                 jni_start(jni_context, prio);
+                last_tunnel = tunnel;
 
                 tunnelThread = new Thread(new Runnable() {
                     @Override
                     public void run() {
                         Log.i(TAG, "Running tunnel context=" + jni_context);
-                        jni_run(jni_context, vpn.getFd(), mapForward.containsKey(53), rcode);
+                        jni_run(jni_context, vpn.getFd(), fwd53, rcode);
                         Log.i(TAG, "Tunnel exited");
                         tunnelThread = null;
                     }
@@ -1517,6 +1586,10 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 tunnelThread.start();
 
                 Log.i(TAG, "Started tunnel thread");
+            } else {
+                // The new policy has been pushed already, terminate sessions not allowed anymore
+                Log.i(TAG, "Recheck sessions context=" + jni_context);
+                jni_recheck(jni_context);
             }
         }
     }
@@ -1547,159 +1620,243 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
+    // Caller should hold policyLock
+    private void setPolicy(PolicySnapshot snapshot) {
+        policy = snapshot;
+        invalidateVerdicts();
+        pushPolicy(snapshot);
+    }
+
+    // Caller should hold policyLock
+    // Only the added rules are sent to native code, the rest of the native policy is unchanged
+    private void addPolicy(PolicySnapshot snapshot, IPFilterIndex added) {
+        policy = snapshot;
+        invalidateVerdicts();
+
+        int rules = added.count();
+        int[] ruleKeys = new int[rules * 5];
+        byte[] ruleAddrs = new byte[rules * 16];
+        long[] ruleExpires = new long[rules];
+        added.toArrays(ruleKeys, ruleAddrs, ruleExpires);
+
+        synchronized (jni_lock) {
+            if (jni_context != 0)
+                jni_add_rules(jni_context, ruleKeys, ruleAddrs, ruleExpires);
+        }
+    }
+
+    private void invalidateVerdicts() {
+        // Cached verdicts would bypass packet logging
+        EngineConfig config = this.config;
+        boolean cache = (config != null && !config.log && !config.log_app);
+        synchronized (jni_lock) {
+            if (jni_context != 0)
+                jni_set_generation(jni_context, ++generation, cache);
+        }
+    }
+
+    // Compile the policy for native code, so new flows can be decided without calling back
+    private void pushPolicy(PolicySnapshot snapshot) {
+        EngineConfig config = this.config;
+        if (config == null)
+            return;
+
+        int[] uids = new int[snapshot.uidFlags.size()];
+        int[] uidFlags = new int[uids.length];
+        snapshot.uidFlags.toArrays(uids, uidFlags);
+
+        int rules = snapshot.uidIPFilters.count();
+        int[] ruleKeys = new int[rules * 5];
+        byte[] ruleAddrs = new byte[rules * 16];
+        long[] ruleExpires = new long[rules];
+        snapshot.uidIPFilters.toArrays(ruleKeys, ruleAddrs, ruleExpires);
+
+        Forward[] fwds = snapshot.getForwards();
+        int[] forwards = new int[fwds.length * 3];
+        String[] forwardAddrs = new String[fwds.length];
+        for (int i = 0; i < fwds.length; i++) {
+            forwards[i * 3] = fwds[i].dport;
+            forwards[i * 3 + 1] = fwds[i].rport;
+            forwards[i * 3 + 2] = fwds[i].ruid;
+            forwardAddrs[i] = fwds[i].raddr;
+        }
+
+        synchronized (jni_lock) {
+            // The hosts file is mapped once per compiled index
+            if (jni_context != 0 && snapshot.hostsBlocked != pushedHosts) {
+                jni_set_hosts(jni_context, snapshot.hostsBlocked.size() == 0 ? null : snapshot.hostsBlocked.getPath());
+                pushedHosts = snapshot.hostsBlocked;
+            }
+
+            if (jni_context != 0)
+                jni_set_policy(jni_context,
+                        config.filter, config.filter_udp, config.log || config.log_app, Process.myUid(),
+                        uids, uidFlags,
+                        ruleKeys, ruleAddrs, ruleExpires,
+                        forwards, forwardAddrs,
+                        snapshot.domainRules.getHashes());
+        }
+    }
+
     private void unprepare() {
-        lock.writeLock().lock();
-        mapUidAllowed.clear();
-        mapUidKnown.clear();
-        mapHostsBlocked.clear();
-        mapUidIPFilters.clear();
-        mapForward.clear();
-        mapNotify.clear();
-        lock.writeLock().unlock();
+        synchronized (policyLock) {
+            setPolicy(PolicySnapshot.EMPTY);
+        }
     }
 
     private void prepareUidAllowed(List<Rule> listAllowed, List<Rule> listRule) {
-        lock.writeLock().lock();
+        UidTable uidFlags = new UidTable(listRule.size());
+        for (Rule rule : listRule)
+            if (!uidFlags.containsKey(rule.uid))
+                uidFlags.put(rule.uid, PolicySnapshot.UID_KNOWN |
+                        (rule.lockdown ? PolicySnapshot.UID_LOCKDOWN : 0));
 
-        mapUidAllowed.clear();
         for (Rule rule : listAllowed)
-            mapUidAllowed.put(rule.uid, true);
-
-        mapUidKnown.clear();
-        for (Rule rule : listRule)
-            mapUidKnown.put(rule.uid, rule.uid);
+            uidFlags.put(rule.uid, uidFlags.get(rule.uid, PolicySnapshot.UID_KNOWN) | PolicySnapshot.UID_ALLOWED);
 
-        lock.writeLock().unlock();
+        synchronized (policyLock) {
+            setPolicy(policy.withUidFlags(uidFlags));
+        }
     }
 
     private void prepareHostsBlocked() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-        boolean use_hosts = prefs.getBoolean("filter", false) && prefs.getBoolean("use_hosts", false);
-        File hosts = new File(getFilesDir(), "hosts.txt");
+        final boolean use_hosts = prefs.getBoolean("filter", false) && prefs.getBoolean("use_hosts", false);
+        final int sequence = hostsSequence.incrementAndGet();
+
+        // Build off the command thread, lookups keep using the previous hosts until the swap
+        hostsExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buildHostsBlocked(use_hosts, sequence);
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+            }
+        });
+    }
+
+    // Runs on the hosts executor only
+    private void buildHostsBlocked(boolean use_hosts, int sequence) {
+        long start = SystemClock.elapsedRealtime();
+
+        File hosts = new File(getFilesDir(), HostsIndex.HOSTS_FILE);
         if (!use_hosts || !hosts.exists() || !hosts.canRead()) {
             Log.i(TAG, "Hosts file use=" + use_hosts + " exists=" + hosts.exists());
-            lock.writeLock().lock();
-            mapHostsBlocked.clear();
-            lock.writeLock().unlock();
+            last_hosts_modified = 0;
+            swapHostsBlocked(HostsIndex.EMPTY, sequence, start);
             return;
         }
 
         boolean changed = (hosts.lastModified() != last_hosts_modified);
-        if (!changed && mapHostsBlocked.size() > 0) {
+        if (!changed && policy.hostsBlocked.size() > 0) {
             Log.i(TAG, "Hosts file unchanged");
             return;
         }
         last_hosts_modified = hosts.lastModified();
 
-        lock.writeLock().lock();
-
-        mapHostsBlocked.clear();
-
-        int count = 0;
-        BufferedReader br = null;
+        // Map the compiled hosts file, readers keep using the previous one
+        HostsIndex hostsBlocked = HostsIndex.EMPTY;
+        File index = new File(getFilesDir(), HostsIndex.INDEX_FILE);
         try {
-            br = new BufferedReader(new FileReader(hosts));
-            String line;
-            while ((line = br.readLine()) != null) {
-                int hash = line.indexOf('#');
-                if (hash >= 0)
-                    line = line.substring(0, hash);
-                line = line.trim();
-                if (line.length() > 0) {
-                    String[] words = line.split("\\s+");
-                    if (words.length == 2) {
-                        count++;
-                        mapHostsBlocked.put(words[1], true);
-                    } else
-                        Log.i(TAG, "Invalid hosts file line: " + line);
-                }
-            }
-            mapHostsBlocked.put("test.netguard.me", true);
-            Log.i(TAG, count + " hosts read");
+            if (HostsIndex.isStale(hosts, index))
+                HostsIndex.compile(hosts, index);
+            hostsBlocked = HostsIndex.open(index);
         } catch (IOException ex) {
             Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-        } finally {
-            if (br != null)
-                try {
-                    br.close();
-                } catch (IOException exex) {
-                    Log.e(TAG, exex.toString() + "\n" + Log.getStackTraceString(exex));
-                }
         }
 
-        lock.writeLock().unlock();
+        swapHostsBlocked(hostsBlocked, sequence, start);
     }
 
-    private void prepareUidIPFilters(String dname) {
-        SharedPreferences lockdown = getSharedPreferences("lockdown", Context.MODE_PRIVATE);
+    private void swapHostsBlocked(HostsIndex hostsBlocked, int sequence, long start) {
+        long built = SystemClock.elapsedRealtime();
+        synchronized (policyLock) {
+            // Filtering might have been disabled or another build requested meanwhile
+            if (sequence != hostsSequence.get()) {
+                Log.i(TAG, "Hosts build " + sequence + " superseded");
+                return;
+            }
+            setPolicy(policy.withHostsBlocked(hostsBlocked));
+        }
+        long swapped = SystemClock.elapsedRealtime();
+        Log.i(TAG, hostsBlocked.size() + " hosts" +
+                " filter " + hostsBlocked.getFilterSize() + " bytes fp " + HostsIndex.FILTER_FP +
+                " built in " + (built - start) + " ms" +
+                " swapped in " + (swapped - built) + " ms");
+    }
 
-        lock.writeLock().lock();
+    private void prepareUidIPFilters() {
+        boolean lockdown = isLockedDown(last_metered);
 
-        if (dname == null) {
-            mapUidIPFilters.clear();
+        synchronized (policyLock) {
+            rebuilds++;
+            IPFilterIndex uidIPFilters = new IPFilterIndex();
+            DomainRules domainRules = new DomainRules();
+            ruleExpiry.clear();
             if (!IAB.isPurchased(ActivityPro.SKU_FILTER, ServiceSinkhole.this)) {
-                lock.writeLock().unlock();
+                setPolicy(policy.withUidIPFilters(uidIPFilters, DomainRules.EMPTY));
                 return;
             }
-        }
 
-        try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns(dname)) {
-            int colUid = cursor.getColumnIndex("uid");
-            int colVersion = cursor.getColumnIndex("version");
-            int colProtocol = cursor.getColumnIndex("protocol");
-            int colDAddr = cursor.getColumnIndex("daddr");
-            int colResource = cursor.getColumnIndex("resource");
-            int colDPort = cursor.getColumnIndex("dport");
-            int colBlock = cursor.getColumnIndex("block");
-            int colTime = cursor.getColumnIndex("time");
-            int colTTL = cursor.getColumnIndex("ttl");
-            while (cursor.moveToNext()) {
-                int uid = cursor.getInt(colUid);
-                int version = cursor.getInt(colVersion);
-                int protocol = cursor.getInt(colProtocol);
-                String daddr = cursor.getString(colDAddr);
-                String dresource = (cursor.isNull(colResource) ? null : cursor.getString(colResource));
-                int dport = cursor.getInt(colDPort);
-                boolean block = (cursor.getInt(colBlock) > 0);
-                long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
-                long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
-
-                if (isLockedDown(last_metered)) {
-                    String[] pkg = getPackageManager().getPackagesForUid(uid);
-                    if (pkg != null && pkg.length > 0) {
-                        if (!lockdown.getBoolean(pkg[0], false))
+            try (Cursor cursor = DatabaseHelper.getInstance(ServiceSinkhole.this).getAccessDns()) {
+                int colUid = cursor.getColumnIndex("uid");
+                int colVersion = cursor.getColumnIndex("version");
+                int colProtocol = cursor.getColumnIndex("protocol");
+                int colDAddr = cursor.getColumnIndex("daddr");
+                int colResource = cursor.getColumnIndex("resource");
+                int colDPort = cursor.getColumnIndex("dport");
+                int colBlock = cursor.getColumnIndex("block");
+                int colTime = cursor.getColumnIndex("time");
+                int colTTL = cursor.getColumnIndex("ttl");
+                while (cursor.moveToNext()) {
+                    int uid = cursor.getInt(colUid);
+                    int version = cursor.getInt(colVersion);
+                    int protocol = cursor.getInt(colProtocol);
+                    String daddr = cursor.getString(colDAddr);
+                    byte[] dresource = (cursor.isNull(colResource) ? null : cursor.getBlob(colResource));
+                    int dport = cursor.getInt(colDPort);
+                    boolean block = (cursor.getInt(colBlock) > 0);
+                    long time = (cursor.isNull(colTime) ? new Date().getTime() : cursor.getLong(colTime));
+                    long ttl = (cursor.isNull(colTTL) ? 7 * 24 * 3600 * 1000L : cursor.getLong(colTTL));
+
+                    if (lockdown) {
+                        int flags = policy.uidFlags.get(uid, 0);
+                        if ((flags & PolicySnapshot.UID_KNOWN) != 0 && (flags & PolicySnapshot.UID_LOCKDOWN) == 0)
                             continue;
                     }
-                }
 
-                IPKey key = new IPKey(version, protocol, dport, uid);
-                synchronized (mapUidIPFilters) {
-                    if (!mapUidIPFilters.containsKey(key))
-                        mapUidIPFilters.put(key, new HashMap());
+                    IPKey key = new IPKey(version, protocol, dport, uid);
+
+                    // Addresses resolved later are added without querying again
+                    boolean numeric = Util.isNumericAddress(daddr);
+                    if (!numeric)
+                        domainRules.add(daddr, key, block);
 
                     try {
-                        String name = (dresource == null ? daddr : dresource);
-                        if (Util.isNumericAddress(name)) {
-                            InetAddress iname = InetAddress.getByName(name);
+                        // Resolved addresses are stored in binary
+                        String name = (dresource == null ? daddr : AddressCursor.format(dresource));
+                        if (dresource != null || numeric) {
+                            InetAddress iname = (dresource == null
+                                    ? InetAddress.getByName(daddr)
+                                    : InetAddress.getByAddress(dresource));
                             if (version == 4 && !(iname instanceof Inet4Address))
                                 continue;
                             if (version == 6 && !(iname instanceof Inet6Address))
                                 continue;
 
-                            boolean exists = mapUidIPFilters.get(key).containsKey(iname);
-                            if (!exists || !mapUidIPFilters.get(key).get(iname).isBlocked()) {
-                                IPRule rule = new IPRule(key, name + "/" + iname, block, time, ttl);
-                                mapUidIPFilters.get(key).put(iname, rule);
+                            IPRule current = uidIPFilters.get(key, iname);
+                            boolean exists = (current != null);
+                            IPRule rule;
+                            if (!exists || !current.isBlocked()) {
+                                rule = new IPRule(key, name + "/" + iname, block, time, ttl);
                                 if (exists)
-                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + dresource);
-                            } else if (exists) {
-                                mapUidIPFilters.get(key).get(iname).updateExpires(time, ttl);
-                                if (dname != null && ttl > 60 * 1000L)
-                                    Log.w(TAG, "Address updated " + key + " " + daddr + "/" + dresource);
-                            } else {
-                                if (dname != null)
-                                    Log.i(TAG, "Ignored " + key + " " + daddr + "/" + dresource + "=" + block);
-                            }
+                                    Log.w(TAG, "Address conflict " + key + " " + daddr + "/" + name);
+                            } else
+                                rule = current.withExpires(time, ttl);
+                            uidIPFilters.put(key, iname, rule);
+                            ruleExpiry.add(new RuleExpiry(key, iname), rule.getExpires());
                         } else
                             Log.w(TAG, "Address not numeric " + name);
                     } catch (UnknownHostException ex) {
@@ -1707,14 +1864,131 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     }
                 }
             }
+
+            Log.i(TAG, domainRules.toString());
+            setPolicy(policy.withUidIPFilters(uidIPFilters, domainRules));
         }
+    }
+
+    // Adds resolved addresses to the rules of the query name, without querying the database
+    private void addUidIPFilters(ResourceRecord[] rrs) {
+        synchronized (policyLock) {
+            List<DomainRules.Rule> rules = policy.domainRules.get(rrs[0].QName);
+            if (rules.isEmpty())
+                return;
+
+            // Only the added rules are copied and sent to native code
+            IPFilterIndex added = new IPFilterIndex();
+            for (ResourceRecord rr : rrs) {
+                int version;
+                if (rr.Type == ResourceRecord.TYPE_A)
+                    version = 4;
+                else if (rr.Type == ResourceRecord.TYPE_AAAA)
+                    version = 6;
+                else
+                    continue;
+
+                InetAddress iname;
+                try {
+                    iname = InetAddress.getByName(rr.Resource);
+                } catch (UnknownHostException ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                    continue;
+                }
+                long ttl = DatabaseHelper.getInstance(ServiceSinkhole.this).getDnsTTL(rr);
+
+                for (DomainRules.Rule rule : rules) {
+                    if (rule.key.version != version)
+                        continue;
+
+                    IPRule current = added.get(rule.key, iname);
+                    if (current == null)
+                        current = policy.uidIPFilters.get(rule.key, iname);
+                    boolean exists = (current != null);
+                    IPRule updated;
+                    if (!exists || !current.isBlocked()) {
+                        updated = new IPRule(rule.key, rr.Resource + "/" + iname, rule.block, rr.Time, ttl);
+                        if (exists)
+                            Log.w(TAG, "Address conflict " + rule.key + " " + rr.QName + "/" + rr.Resource);
+                    } else {
+                        updated = current.withExpires(rr.Time, ttl);
+                        if (ttl > 60 * 1000L)
+                            Log.w(TAG, "Address updated " + rule.key + " " + rr.QName + "/" + rr.Resource);
+                    }
+                    added.put(rule.key, iname, updated);
+                    ruleExpiry.add(new RuleExpiry(rule.key, iname), updated.getExpires());
+                }
+            }
 
-        lock.writeLock().unlock();
+            if (added.size() > 0)
+                addPolicy(policy.withUidIPFilters(policy.uidIPFilters.withAdded(added)), added);
+        }
+    }
+
+    private static class RuleExpiry {
+        final IPKey key;
+        final InetAddress address;
+
+        RuleExpiry(IPKey key, InetAddress address) {
+            this.key = key;
+            this.address = address;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RuleExpiry))
+                return false;
+            RuleExpiry other = (RuleExpiry) obj;
+            return (this.key.equals(other.key) && this.address.equals(other.address));
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + address.hashCode();
+        }
+    }
+
+    // Runs on the log thread, like the other database writes
+    private final Runnable expireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                expire(System.currentTimeMillis());
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            }
+            logHandler.postDelayed(this, EXPIRE_TICK);
+        }
+    };
+
+    private void expire(long now) {
+        // Rules might have been replaced or renewed since they were added
+        List<RuleExpiry> expired = ruleExpiry.poll(now, EXPIRE_BATCH);
+        if (expired.size() > 0)
+            synchronized (policyLock) {
+                int count = 0;
+                for (RuleExpiry rule : expired) {
+                    IPRule current = policy.uidIPFilters.get(rule.key, rule.address);
+                    if (current != null && current.getExpires() <= now)
+                        count++;
+                }
+
+                // Copying leaves out all expired rules
+                // Native rules have an expiry time too and are left out when rules are added
+                if (count > 0) {
+                    Log.i(TAG, "Expired rules=" + count);
+                    policy = policy.withUidIPFilters(policy.uidIPFilters.copy());
+                    invalidateVerdicts();
+                }
+            }
+
+        int deleted = DatabaseHelper.getInstance(ServiceSinkhole.this).expireDns(now, DatabaseHelper.DNS_EXPIRE_BATCH);
+        if (deleted > 0)
+            Log.i(TAG, "Expired DNS records=" + deleted);
     }
 
     private void prepareForwarding() {
-        lock.writeLock().lock();
-        mapForward.clear();
+        List<Forward> listForward = new ArrayList<>();
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         if (prefs.getBoolean("filter", false)) {
@@ -1731,12 +2005,15 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                     fwd.raddr = cursor.getString(colRAddr);
                     fwd.rport = cursor.getInt(colRPort);
                     fwd.ruid = cursor.getInt(colRUid);
-                    mapForward.put(fwd.dport, fwd);
+                    listForward.add(fwd);
                     Log.i(TAG, "Forward " + fwd);
                 }
             }
         }
-        lock.writeLock().unlock();
+
+        synchronized (policyLock) {
+            setPolicy(policy.withForward(listForward));
+        }
     }
 
     private void prepareNotify(List<Rule> listRule) {
@@ -1744,22 +2021,17 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         boolean notify = prefs.getBoolean("notify_access", false);
         boolean system = prefs.getBoolean("manage_system", false);
 
-        lock.writeLock().lock();
-        mapNotify.clear();
+        UidTable uidNotify = new UidTable(listRule.size());
         for (Rule rule : listRule)
-            mapNotify.put(rule.uid, notify && rule.notify && (system || !rule.system));
-        lock.writeLock().unlock();
+            uidNotify.put(rule.uid, notify && rule.notify && (system || !rule.system) ? 1 : 0);
+
+        synchronized (policyLock) {
+            setPolicy(policy.withNotify(uidNotify));
+        }
     }
 
     private boolean isLockedDown(boolean metered) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ServiceSinkhole.this);
-        boolean lockdown = prefs.getBoolean("lockdown", false);
-        boolean lockdown_wifi = prefs.getBoolean("lockdown_wifi", true);
-        boolean lockdown_other = prefs.getBoolean("lockdown_other", true);
-        if (metered ? !lockdown_other : !lockdown_wifi)
-            lockdown = false;
-
-        return lockdown;
+        return config.isLockedDown(metered);
     }
 
     private List<Rule> getAllowedRules(List<Rule> listRule) {
@@ -1875,20 +2147,29 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         logHandler.queue(packet);
     }
 
-    // Called from native code
-    private void dnsResolved(ResourceRecord rr) {
-        if (DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rr)) {
-            Log.i(TAG, "New IP " + rr);
-            prepareUidIPFilters(rr.QName);
-        }
+    // Called from native code with all records of a response
+    private void dnsResolved(int seq, ResourceRecord[] rrs) {
+        DnsPipeline pipeline = dnsPipeline;
+        if (pipeline != null)
+            pipeline.offer(seq, rrs);
     }
 
-    // Called from native code
-    private boolean isDomainBlocked(String name) {
-        lock.readLock().lock();
-        boolean blocked = (mapHostsBlocked.containsKey(name) && mapHostsBlocked.get(name));
-        lock.readLock().unlock();
-        return blocked;
+    // Runs on the DNS pipeline thread only
+    private void filterResolved(ResourceRecord[] rrs) {
+        filteredRebuilds = rebuilds;
+        if (rrs.length > 0)
+            addUidIPFilters(rrs);
+    }
+
+    // Runs on the DNS pipeline thread only, after filterResolved
+    private void storeResolved(ResourceRecord[] rrs) {
+        if (rrs.length > 0 && DatabaseHelper.getInstance(ServiceSinkhole.this).insertDns(rrs)) {
+            Log.i(TAG, "New IP " + TextUtils.join(", ", rrs));
+
+            // A rebuild from the database in between did not see the records
+            if (rebuilds != filteredRebuilds)
+                addUidIPFilters(rrs);
+        }
     }
 
     // Called from native code
@@ -1919,65 +2200,20 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     // Called from native code
     private Allowed isAddressAllowed(Packet packet) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        long start = System.nanoTime();
 
-        lock.readLock().lock();
+        // Use one snapshot for the whole decision
+        EngineConfig config = this.config;
+        PolicySnapshot policy = this.policy;
 
-        packet.allowed = false;
-        if (prefs.getBoolean("filter", false)) {
-            // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
-            if (packet.protocol == 17 /* UDP */ && !prefs.getBoolean("filter_udp", false)) {
-                // Allow unfiltered UDP
-                packet.allowed = true;
-                Log.i(TAG, "Allowing UDP " + packet);
-            } else if (packet.uid < 2000 &&
-                    !last_connected && isSupported(packet.protocol) && false) {
-                // Allow system applications in disconnected state
-                packet.allowed = true;
-                Log.w(TAG, "Allowing disconnected system " + packet);
-            } else if (packet.uid < 2000 &&
-                    !mapUidKnown.containsKey(packet.uid) && isSupported(packet.protocol)) {
-                // Allow unknown system traffic
-                packet.allowed = true;
-                Log.w(TAG, "Allowing unknown system " + packet);
-            } else if (packet.uid == Process.myUid()) {
-                // Allow self
-                packet.allowed = true;
-                Log.w(TAG, "Allowing self " + packet);
-            } else {
-                boolean filtered = false;
-                IPKey key = new IPKey(packet.version, packet.protocol, packet.dport, packet.uid);
-                if (mapUidIPFilters.containsKey(key))
-                    try {
-                        InetAddress iaddr = InetAddress.getByName(packet.daddr);
-                        Map<InetAddress, IPRule> map = mapUidIPFilters.get(key);
-                        if (map != null && map.containsKey(iaddr)) {
-                            IPRule rule = map.get(iaddr);
-                            if (rule.isExpired())
-                                Log.i(TAG, "DNS expired " + packet + " rule " + rule);
-                            else {
-                                filtered = true;
-                                packet.allowed = !rule.isBlocked();
-                                Log.i(TAG, "Filtering " + packet +
-                                        " allowed=" + packet.allowed + " rule " + rule);
-                            }
-                        }
-                    } catch (UnknownHostException ex) {
-                        Log.w(TAG, "Allowed " + ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    }
-
-                if (!filtered)
-                    if (mapUidAllowed.containsKey(packet.uid))
-                        packet.allowed = mapUidAllowed.get(packet.uid);
-                    else
-                        Log.w(TAG, "No rules for " + packet);
-            }
-        }
+        packet.allowed = isAllowed(config, policy,
+                packet.version, packet.protocol, packet.dport, packet.uid,
+                packet.daddr4, packet.daddr6hi, packet.daddr6lo, packet);
 
         Allowed allowed = null;
         if (packet.allowed) {
-            if (mapForward.containsKey(packet.dport)) {
-                Forward fwd = mapForward.get(packet.dport);
+            Forward fwd = policy.getForward(packet.dport);
+            if (fwd != null) {
                 if (fwd.ruid == packet.uid) {
                     allowed = new Allowed();
                 } else {
@@ -1988,16 +2224,85 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 allowed = new Allowed();
         }
 
-        lock.readLock().unlock();
-
-        if (prefs.getBoolean("log", false) || prefs.getBoolean("log_app", false))
+        if (config.log || config.log_app)
             if (packet.protocol != 6 /* TCP */ || !"".equals(packet.flags))
                 if (packet.uid != Process.myUid())
                     logPacket(packet);
 
+        latencyAllowed.recordSince(start);
         return allowed;
     }
 
+    // Called from native code
+    // Same as isAddressAllowed without allocations, the verdict is packed into an int:
+    // VERDICT_ALLOWED, VERDICT_LOG when native code should log the packet,
+    // forwarding rule index + 1 from bit VERDICT_FORWARD_SHIFT
+    private int isAddressAllowedRaw(int version, int protocol, int dport, int uid,
+                                    int daddr4, long daddr6hi, long daddr6lo, boolean loggable) {
+        long start = System.nanoTime();
+        EngineConfig config = this.config;
+        PolicySnapshot policy = this.policy;
+
+        int verdict = 0;
+        if (isAllowed(config, policy, version, protocol, dport, uid, daddr4, daddr6hi, daddr6lo, null)) {
+            verdict |= VERDICT_ALLOWED;
+            int index = policy.getForwardIndex(dport);
+            if (index >= 0 && policy.getForward(dport).ruid != uid)
+                verdict |= (index + 1) << VERDICT_FORWARD_SHIFT;
+        }
+
+        if ((config.log || config.log_app) && loggable && uid != Process.myUid())
+            verdict |= VERDICT_LOG;
+
+        latencyAllowed.recordSince(start);
+        return verdict;
+    }
+
+    // Packet is only used for logging and can be null
+    private boolean isAllowed(EngineConfig config, PolicySnapshot policy,
+                              int version, int protocol, int dport, int uid,
+                              int daddr4, long daddr6hi, long daddr6lo, Packet packet) {
+        if (!config.filter)
+            return false;
+
+        int flags = policy.uidFlags.get(uid, 0);
+
+        // https://android.googlesource.com/platform/system/core/+/master/include/private/android_filesystem_config.h
+        if (protocol == 17 /* UDP */ && !config.filter_udp) {
+            // Allow unfiltered UDP
+            if (packet != null)
+                Log.i(TAG, "Allowing UDP " + packet);
+            return true;
+        } else if (uid < 2000 &&
+                (flags & PolicySnapshot.UID_KNOWN) == 0 && isSupported(protocol)) {
+            // Allow unknown system traffic
+            if (packet != null)
+                Log.w(TAG, "Allowing unknown system " + packet);
+            return true;
+        } else if (uid == Process.myUid()) {
+            // Allow self
+            if (packet != null)
+                Log.w(TAG, "Allowing self " + packet);
+            return true;
+        } else {
+            IPRule rule = policy.uidIPFilters.lookup(
+                    version, protocol, dport, uid, daddr4, daddr6hi, daddr6lo);
+            if (rule != null) {
+                if (packet != null)
+                    Log.i(TAG, "Filtering " + packet +
+                            " allowed=" + !rule.isBlocked() + " rule " + rule);
+                return !rule.isBlocked();
+            }
+
+            if ((flags & PolicySnapshot.UID_ALLOWED) != 0)
+                return true;
+
+            if (packet != null)
+                Log.w(TAG, "No rules for " + packet);
+            return false;
+        }
+    }
+
     // Called from native code
     private void accountUsage(Usage usage) {
         logHandler.account(usage);
@@ -2411,9 +2716,57 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         // Native init
         jni_context = jni_init(Build.VERSION.SDK_INT);
         Log.i(TAG, "Created context=" + jni_context);
+
+        // Resolved records are applied off the tunnel and ring consumer threads
+        dnsPipeline = new DnsPipeline(new DnsPipeline.Stage() {
+            @Override
+            public boolean isFiltered(String qname) {
+                return !policy.domainRules.get(qname).isEmpty();
+            }
+
+            @Override
+            public void filter(ResourceRecord[] rrs) {
+                filterResolved(rrs);
+            }
+
+            @Override
+            public void applied(int seq) {
+                synchronized (jni_lock) {
+                    if (jni_context != 0)
+                        jni_set_resolved(jni_context, seq);
+                }
+            }
+
+            @Override
+            public void store(ResourceRecord[] rrs) {
+                storeResolved(rrs);
+            }
+        });
+        dnsPipeline.start();
+
+        // Native events are delivered through a shared ring instead of upcalls
+        eventRing = new EventRing(jni_context, new EventRing.Listener() {
+            @Override
+            public void onPacket(Packet packet) {
+                logPacket(packet);
+            }
+
+            @Override
+            public void onUsage(Usage usage) {
+                accountUsage(usage);
+            }
+
+            @Override
+            public void onResolved(int seq, ResourceRecord[] rrs) {
+                dnsResolved(seq, rrs);
+            }
+        });
+        if (!eventRing.start())
+            eventRing = null;
         boolean pcap = prefs.getBoolean("pcap", false);
         setPcap(pcap, this);
 
+        config = new EngineConfig(prefs);
         prefs.registerOnSharedPreferenceChangeListener(this);
 
         Util.setTheme(this);
@@ -2434,6 +2787,21 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         logHandler = new LogHandler(logLooper);
         statsHandler = new StatsHandler(statsLooper);
 
+        // Packets and usage are logged with the query name of the address
+        logHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DatabaseHelper.getInstance(ServiceSinkhole.this).warmQNames();
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                }
+            }
+        });
+
+        // Expired rules and records are removed a few at a time
+        logHandler.postDelayed(expireRunnable, EXPIRE_TICK);
+
         // Listen for user switches
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
             IntentFilter ifUser = new IntentFilter();
@@ -2602,6 +2970,22 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences prefs, String name) {
+        // Packet decisions read settings from an immutable copy
+        config = new EngineConfig(prefs);
+
+        // Republish the policy to native code off the main thread
+        if ("filter".equals(name) || "filter_udp".equals(name) ||
+                "log".equals(name) || "log_app".equals(name) ||
+                "lockdown".equals(name) || "lockdown_wifi".equals(name) || "lockdown_other".equals(name))
+            commandHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (policyLock) {
+                        setPolicy(policy);
+                    }
+                }
+            });
+
         if ("theme".equals(name)) {
             Log.i(TAG, "Theme changed");
             Util.setTheme(this);
@@ -2779,6 +3163,18 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
             }
 
+            if (eventRing != null) {
+                eventRing.stop();
+                eventRing = null;
+            }
+
+            if (dnsPipeline != null) {
+                dnsPipeline.stop();
+                dnsPipeline = null;
+            }
+
+            hostsExecutor.shutdownNow();
+
             Log.i(TAG, "Destroy context=" + jni_context);
             synchronized (jni_lock) {
                 jni_done(jni_context);
@@ -2857,7 +3253,7 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
 
     private void updateEnforcingNotification(int allowed, int total) {
         // Update notification
-        Notification notification = getEnforcingNotification(allowed, total - allowed, mapHostsBlocked.size());
+        Notification notification = getEnforcingNotification(allowed, total - allowed, policy.hostsBlocked.size());
         NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         nm.notify(NOTIFY_ENFORCING, notification);
     }
@@ -3211,84 +3607,6 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         }
     }
 
-    private class IPKey {
-        int version;
-        int protocol;
-        int dport;
-        int uid;
-
-        public IPKey(int version, int protocol, int dport, int uid) {
-            this.version = version;
-            this.protocol = protocol;
-            // Only TCP (6) and UDP (17) have port numbers
-            this.dport = (protocol == 6 || protocol == 17 ? dport : 0);
-            this.uid = uid;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof IPKey))
-                return false;
-            IPKey other = (IPKey) obj;
-            return (this.version == other.version &&
-                    this.protocol == other.protocol &&
-                    this.dport == other.dport &&
-                    this.uid == other.uid);
-        }
-
-        @Override
-        public int hashCode() {
-            return (version << 40) | (protocol << 32) | (dport << 16) | uid;
-        }
-
-        @Override
-        public String toString() {
-            return "v" + version + " p" + protocol + " port=" + dport + " uid=" + uid;
-        }
-    }
-
-    private class IPRule {
-        private IPKey key;
-        private String name;
-        private boolean block;
-        private long time;
-        private long ttl;
-
-        public IPRule(IPKey key, String name, boolean block, long time, long ttl) {
-            this.key = key;
-            this.name = name;
-            this.block = block;
-            this.time = time;
-            this.ttl = ttl;
-        }
-
-        public boolean isBlocked() {
-            return this.block;
-        }
-
-        public boolean isExpired() {
-            return System.currentTimeMillis() > (this.time + this.ttl * 2);
-        }
-
-        public void updateExpires(long time, long ttl) {
-            this.time = time;
-            this.ttl = ttl;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            IPRule other = (IPRule) obj;
-            return (this.block == other.block &&
-                    this.time == other.time &&
-                    this.ttl == other.ttl);
-        }
-
-        @Override
-        public String toString() {
-            return this.key + " " + this.name;
-        }
-    }
-
     public static void run(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.run);
@@ -3322,6 +3640,16 @@ public class ServiceSinkhole extends VpnService implements SharedPreferences.OnS
         ContextCompat.startForegroundService(context, intent);
     }
 
+    public static void reloadHosts(String reason, Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getBoolean("enabled", false)) {
+            Intent intent = new Intent(context, ServiceSinkhole.class);
+            intent.putExtra(EXTRA_COMMAND, Command.hosts);
+            intent.putExtra(EXTRA_REASON, reason);
+            ContextCompat.startForegroundService(context, intent);
+        }
+    }
+
     public static void reloadStats(String reason, Context context) {
         Intent intent = new Intent(context, ServiceSinkhole.class);
         intent.putExtra(EXTRA_COMMAND, Command.stats);
@@ -0,0 +1,134 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.Arrays;
+
+// Int to int hash table with open addressing
+// Filled once by the thread preparing the rules, read only after being published
+// Lookups are a single probe sequence without boxing or allocations
+public class UidTable {
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+
+    public UidTable() {
+        this(16);
+    }
+
+    public UidTable(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public void put(int key, int value) {
+        if (key == FREE)
+            throw new IllegalArgumentException("Invalid key " + key);
+
+        int i = hash(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+
+        // Keep the load factor at most 1/2
+        if (size * 2 > keys.length)
+            rehash(keys.length * 2);
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != FREE)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    public int get(int key, int missing) {
+        if (key == FREE)
+            return missing;
+        int i = hash(key) & mask;
+        int k;
+        while ((k = keys[i]) != FREE) {
+            if (k == key)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    public boolean containsKey(int key) {
+        if (key == FREE)
+            return false;
+        int i = hash(key) & mask;
+        int k;
+        while ((k = keys[i]) != FREE) {
+            if (k == key)
+                return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Arrays sized by size()
+    public void toArrays(int[] keys, int[] values) {
+        int n = 0;
+        for (int i = 0; i < this.keys.length && n < keys.length; i++)
+            if (this.keys[i] != FREE) {
+                keys[n] = this.keys[i];
+                values[n] = this.values[i];
+                n++;
+            }
+    }
+
+    @Override
+    public String toString() {
+        return "UidTable size=" + size + " capacity=" + keys.length;
+    }
+}
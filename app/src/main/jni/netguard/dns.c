@@ -75,11 +75,69 @@ int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char
     return (c ? off : ptr);
 }
 
-void parse_dns_response(const struct arguments *args, const struct ng_session *s,
-                        const uint8_t *data, size_t *datalen) {
+static void set_dns_blocked(struct dns_header *dns, int rcode) {
+    dns->qr = 1;
+    dns->aa = 0;
+    dns->tc = 0;
+    dns->rd = 0;
+    dns->ra = 0;
+    dns->z = 0;
+    dns->ad = 0;
+    dns->cd = 0;
+    dns->rcode = (uint16_t) rcode;
+    dns->ans_count = 0;
+    dns->auth_count = 0;
+    dns->add_count = 0;
+}
+
+void log_dns_blocked(const struct arguments *args, int version, int protocol,
+                     const char *source, uint16_t sport, const char *dest, uint16_t dport,
+                     uint16_t qtype, const char *qname, int rcode) {
+    // Log qname
+    char name[DNS_QNAME_MAX + 40 + 1];
+    sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, rcode);
+    queue_packet(args, version, protocol, "",
+                 source, sport, dest, dport,
+                 name, 0, 0);
+}
+
+// Build the response to a query for a blocked name, so the query does not need to be forwarded
+// Returns the length of the response or zero if the query should be forwarded
+size_t get_dns_blocked(const struct arguments *args,
+                       const uint8_t *data, size_t datalen,
+                       uint8_t *response, size_t size,
+                       char *qname, uint16_t *qtype) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return 0;
+
+    // Only standard queries with a single question
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (dns->qr != 0 || dns->opcode != 0 || ntohs(dns->q_count) != 1 || ntohs(dns->ans_count) != 0)
+        return 0;
+
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), qname);
+    if (off < 0 || off + 4 > datalen || off + 4 > size)
+        return 0;
+    *qtype = ntohs(*((uint16_t *) (data + off)));
+    off += 4;
+
+    if (!is_domain_blocked(args, qname))
+        return 0;
+
+    // Answer with the question only, like blocked responses
+    memcpy(response, data, (size_t) off);
+    set_dns_blocked((struct dns_header *) response, args->rcode);
+    log_android(ANDROID_LOG_WARN, "DNS query qtype %d qname %s blocked", *qtype, qname);
+
+    return (size_t) off;
+}
+
+// Returns 1 if the response was rewritten because the name is blocked
+int parse_dns_response(const struct arguments *args, const struct ng_session *s,
+                       const uint8_t *data, size_t *datalen) {
     if (*datalen < sizeof(struct dns_header) + 1) {
         log_android(ANDROID_LOG_WARN, "DNS response length %d", *datalen);
-        return;
+        return 0;
     }
 
     // Check if standard DNS query
@@ -116,13 +174,16 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
             } else {
                 log_android(ANDROID_LOG_WARN,
                             "DNS response Q invalid off %d datalen %d", off, *datalen);
-                return;
+                return 0;
             }
         }
 
         short svcb = 0;
         int32_t aoff = off;
-        for (int a = 0; a < acount; a++) {
+        struct dns_answer answers[DNS_ANSWERS_MAX];
+        int resolved = 0;
+        int valid = 1;
+        for (int a = 0; a < acount && valid; a++) {
             off = get_qname(data, *datalen, (uint16_t) off, name);
             if (off > 0 && off + 10 <= *datalen) {
                 uint16_t qtype = ntohs(*((uint16_t *) (data + off)));
@@ -133,22 +194,31 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
 
                 if (off + rdlength <= *datalen) {
                     if (qclass == DNS_QCLASS_IN &&
-                        (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA)) {
+                        (qtype == DNS_QTYPE_A || qtype == DNS_QTYPE_AAAA ||
+                         qtype == DNS_CNAME)) {
 
-                        char rd[INET6_ADDRSTRLEN + 1];
+                        char rd[DNS_QNAME_MAX + 1];
                         if (qtype == DNS_QTYPE_A) {
                             if (off + sizeof(__be32) <= *datalen)
                                 inet_ntop(AF_INET, data + off, rd, sizeof(rd));
                             else
-                                return;
-                        } else if (qclass == DNS_QCLASS_IN && qtype == DNS_QTYPE_AAAA) {
+                                valid = 0;
+                        } else if (qtype == DNS_QTYPE_AAAA) {
                             if (off + sizeof(struct in6_addr) <= *datalen)
                                 inet_ntop(AF_INET6, data + off, rd, sizeof(rd));
                             else
-                                return;
-                        }
+                                valid = 0;
+                        } else if (get_qname(data, *datalen, (uint16_t) off, rd) < 0)
+                            valid = 0;
 
-                        dns_resolved(args, qname, name, rd, ttl);
+                        // Delivered together after parsing the response
+                        if (valid && resolved < DNS_ANSWERS_MAX) {
+                            struct dns_answer *answer = &answers[resolved++];
+                            answer->qtype = qtype;
+                            answer->ttl = ttl;
+                            strcpy(answer->aname, name);
+                            strcpy(answer->resource, rd);
+                        }
                         log_android(ANDROID_LOG_DEBUG,
                                     "DNS answer %d qname %s qtype %d ttl %d data %s",
                                     a, name, qtype, ttl, rd);
@@ -168,31 +238,30 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                     log_android(ANDROID_LOG_WARN,
                                 "DNS response A invalid off %d rdlength %d datalen %d",
                                 off, rdlength, *datalen);
-                    return;
+                    valid = 0;
                 }
             } else {
                 log_android(ANDROID_LOG_WARN,
                             "DNS response A invalid off %d datalen %d", off, *datalen);
-                return;
+                valid = 0;
             }
         }
 
+        // Answers parsed before an invalid record are still delivered
+        if (resolved > 0)
+            dns_resolved(args, qname, answers, resolved);
+        if (!valid)
+            return 0;
+
         if (qcount > 0 &&
             (svcb || is_domain_blocked(args, qname))) {
-            dns->qr = 1;
-            dns->aa = 0;
-            dns->tc = 0;
-            dns->rd = 0;
-            dns->ra = 0;
-            dns->z = 0;
-            dns->ad = 0;
-            dns->cd = 0;
-            dns->rcode = (uint16_t) args->rcode;
-            dns->ans_count = 0;
-            dns->auth_count = 0;
-            dns->add_count = 0;
+            set_dns_blocked(dns, args->rcode);
             *datalen = aoff;
 
+            // Replayed from the cache
+            if (s == NULL)
+                return 1;
+
             int version;
             char source[INET6_ADDRSTRLEN + 1];
             char dest[INET6_ADDRSTRLEN + 1];
@@ -223,17 +292,14 @@ void parse_dns_response(const struct arguments *args, const struct ng_session *s
                 }
             }
 
-            // Log qname
-            char name[DNS_QNAME_MAX + 40 + 1];
-            sprintf(name, "qtype %d qname %s rcode %d", qtype, qname, dns->rcode);
-            jobject objPacket = create_packet(
-                    args, version, s->protocol, "",
-                    source, sport, dest, dport,
-                    name, 0, 0);
-            log_packet(args, objPacket);
+            log_dns_blocked(args, version, s->protocol, source, sport, dest, dport,
+                            qtype, qname, dns->rcode);
+            return 1;
         }
     } else if (acount > 0)
         log_android(ANDROID_LOG_WARN,
                     "DNS response qr %d opcode %d qcount %d acount %d",
                     dns->qr, dns->opcode, qcount, acount);
+
+    return 0;
 }
@@ -0,0 +1,301 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// DNS answer cache, only accessed from the tunnel thread
+// Responses are stored as received and replayed with the query ID and aged TTLs
+
+void init_dns_cache(struct context *ctx) {
+    ctx->dns_cache = ng_calloc(1, sizeof(struct dns_cache), "dns cache");
+    ctx->dns_hits = 0;
+    ctx->dns_misses = 0;
+}
+
+void free_dns_cache(struct context *ctx) {
+    struct dns_cache *cache = ctx->dns_cache;
+    if (cache == NULL)
+        return;
+
+    struct dns_cache_entry *e = cache->lru_head;
+    while (e != NULL) {
+        struct dns_cache_entry *n = e->lru_next;
+        ng_free(e, __FILE__, __LINE__);
+        e = n;
+    }
+
+    ng_free(cache, __FILE__, __LINE__);
+    ctx->dns_cache = NULL;
+}
+
+static uint32_t dns_cache_hash(const char *qname, uint16_t qtype, uint16_t qclass) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    for (const char *c = qname; *c; c++)
+        h = (h ^ (uint8_t) *c) * 16777619u;
+    h = (h ^ qtype) * 16777619u;
+    h = (h ^ qclass) * 16777619u;
+    return h;
+}
+
+// Parse the question of a standard single question message
+// Returns the offset after the question or -1
+static int32_t get_dns_question(const uint8_t *data, size_t datalen,
+                                char *qname, uint16_t *qtype, uint16_t *qclass) {
+    if (datalen < sizeof(struct dns_header) + 1)
+        return -1;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (dns->opcode != 0 || ntohs(dns->q_count) != 1)
+        return -1;
+
+    int32_t off = get_qname(data, datalen, sizeof(struct dns_header), qname);
+    if (off < 0 || off + 4 > datalen)
+        return -1;
+
+    *qtype = ntohs(*((uint16_t *) (data + off)));
+    *qclass = ntohs(*((uint16_t *) (data + off + 2)));
+
+    for (char *c = qname; *c; c++)
+        *c = (char) tolower(*c);
+
+    return off + 4;
+}
+
+// Walk all resource records, age them by elapsed seconds and compute the cache TTL
+// Returns -1 if the message is malformed
+static int age_dns_records(uint8_t *data, size_t datalen, int32_t off,
+                           uint32_t elapsed, uint32_t *ttl) {
+    struct dns_header *dns = (struct dns_header *) data;
+    int acount = ntohs(dns->ans_count);
+    int ncount = ntohs(dns->auth_count);
+    int count = acount + ncount + ntohs(dns->add_count);
+    int negative = (dns->rcode == 3 || acount == 0);
+
+    char name[DNS_QNAME_MAX + 1];
+    uint32_t min = UINT32_MAX;
+    for (int r = 0; r < count; r++) {
+        off = get_qname(data, datalen, (uint16_t) off, name);
+        if (off < 0 || off + 10 > datalen)
+            return -1;
+
+        uint16_t type = ntohs(*((uint16_t *) (data + off)));
+        uint32_t rttl = ntohl(*((uint32_t *) (data + off + 4)));
+        uint16_t rdlength = ntohs(*((uint16_t *) (data + off + 8)));
+        if (off + 10 + rdlength > datalen)
+            return -1;
+
+        // The TTL field of OPT records holds flags
+        if (type != DNS_OPT) {
+            if (r < acount || (negative && r < acount + ncount)) {
+                if (rttl < min)
+                    min = rttl;
+                // https://tools.ietf.org/html/rfc2308#section-5
+                if (negative && type == DNS_SOA && rdlength >= 4) {
+                    uint32_t minimum = ntohl(*((uint32_t *) (data + off + 10 + rdlength - 4)));
+                    if (minimum < min)
+                        min = minimum;
+                }
+            }
+
+            if (elapsed > 0)
+                *((uint32_t *) (data + off + 4)) = htonl(rttl > elapsed ? rttl - elapsed : 0);
+        }
+
+        off += 10 + rdlength;
+    }
+
+    if (min == UINT32_MAX)
+        min = (negative ? DNS_CACHE_NEGATIVE_TTL : 0);
+    *ttl = (min > DNS_CACHE_TTL_MAX ? DNS_CACHE_TTL_MAX : min);
+
+    return 0;
+}
+
+static void remove_dns_cached(struct dns_cache *cache, struct dns_cache_entry *e) {
+    struct dns_cache_entry **p = &cache->bucket[e->hash & (DNS_CACHE_BUCKETS - 1)];
+    while (*p != NULL && *p != e)
+        p = &(*p)->next;
+    if (*p != NULL)
+        *p = e->next;
+
+    if (e->lru_prev == NULL)
+        cache->lru_head = e->lru_next;
+    else
+        e->lru_prev->lru_next = e->lru_next;
+    if (e->lru_next == NULL)
+        cache->lru_tail = e->lru_prev;
+    else
+        e->lru_next->lru_prev = e->lru_prev;
+
+    cache->memory -= e->size;
+    cache->count--;
+
+    ng_free(e, __FILE__, __LINE__);
+}
+
+static void touch_dns_cached(struct dns_cache *cache, struct dns_cache_entry *e) {
+    if (cache->lru_head == e)
+        return;
+
+    e->lru_prev->lru_next = e->lru_next;
+    if (e->lru_next == NULL)
+        cache->lru_tail = e->lru_prev;
+    else
+        e->lru_next->lru_prev = e->lru_prev;
+
+    e->lru_prev = NULL;
+    e->lru_next = cache->lru_head;
+    cache->lru_head->lru_prev = e;
+    cache->lru_head = e;
+}
+
+static struct dns_cache_entry *find_dns_cached(struct dns_cache *cache, uint32_t hash,
+                                               const char *qname, uint16_t qtype,
+                                               uint16_t qclass) {
+    struct dns_cache_entry *e = cache->bucket[hash & (DNS_CACHE_BUCKETS - 1)];
+    while (e != NULL) {
+        if (e->hash == hash && e->qtype == qtype && e->qclass == qclass &&
+            strcmp(e->qname, qname) == 0)
+            return e;
+        e = e->next;
+    }
+    return NULL;
+}
+
+// Build the response to a query from the cache
+// Returns the length of the response or zero if the query should be forwarded
+size_t get_dns_cached(const struct arguments *args,
+                      const uint8_t *data, size_t datalen,
+                      uint8_t *response, size_t size) {
+    struct context *ctx = args->ctx;
+    struct dns_cache *cache = ctx->dns_cache;
+    if (cache == NULL)
+        return 0;
+
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (datalen < sizeof(struct dns_header) + 1 || dns->qr != 0 || ntohs(dns->ans_count) != 0)
+        return 0;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int32_t qoff = get_dns_question(data, datalen, qname, &qtype, &qclass);
+    if (qoff < 0)
+        return 0;
+
+    uint32_t hash = dns_cache_hash(qname, qtype, qclass);
+    struct dns_cache_entry *e = find_dns_cached(cache, hash, qname, qtype, qclass);
+
+    long long now = get_ms();
+    if (e != NULL && e->time + e->ttl * 1000LL <= now) {
+        remove_dns_cached(cache, e);
+        e = NULL;
+    }
+
+    if (e == NULL || e->length > size) {
+        __atomic_add_fetch(&ctx->dns_misses, 1, __ATOMIC_RELAXED);
+        return 0;
+    }
+
+    memcpy(response, e->response, e->length);
+
+    // Echo the question as asked, including the case of the name
+    struct dns_header *rdns = (struct dns_header *) response;
+    rdns->id = dns->id;
+    rdns->rd = dns->rd;
+    memcpy(response + sizeof(struct dns_header), data + sizeof(struct dns_header),
+           qoff - sizeof(struct dns_header));
+
+    uint32_t elapsed = (uint32_t) ((now - e->time) / 1000);
+    uint32_t ttl;
+    if (elapsed > 0)
+        age_dns_records(response, e->length, qoff, elapsed, &ttl);
+
+    touch_dns_cached(cache, e);
+    __atomic_add_fetch(&ctx->dns_hits, 1, __ATOMIC_RELAXED);
+    log_android(ANDROID_LOG_DEBUG, "DNS cached qtype %d qname %s age %u/%u",
+                qtype, qname, elapsed, e->ttl);
+
+    return e->length;
+}
+
+// Store a response, including negative answers, until its records expire
+void put_dns_cached(const struct arguments *args, const uint8_t *data, size_t datalen) {
+    struct dns_cache *cache = args->ctx->dns_cache;
+    if (cache == NULL || datalen > DNS_CACHE_RESPONSE_MAX)
+        return;
+
+    // Only complete answers and name errors
+    const struct dns_header *dns = (const struct dns_header *) data;
+    if (datalen < sizeof(struct dns_header) + 1 ||
+        dns->qr != 1 || dns->tc || (dns->rcode != 0 && dns->rcode != 3))
+        return;
+
+    char qname[DNS_QNAME_MAX + 1];
+    uint16_t qtype;
+    uint16_t qclass;
+    int32_t qoff = get_dns_question(data, datalen, qname, &qtype, &qclass);
+    if (qoff < 0)
+        return;
+
+    size_t qlen = strlen(qname) + 1;
+    size_t esize = sizeof(struct dns_cache_entry) + datalen + qlen;
+    struct dns_cache_entry *e = ng_malloc(esize, "dns cache");
+    memcpy(e->response, data, datalen);
+    if (age_dns_records(e->response, datalen, qoff, 0, &e->ttl) < 0 || e->ttl == 0) {
+        ng_free(e, __FILE__, __LINE__);
+        return;
+    }
+
+    e->hash = dns_cache_hash(qname, qtype, qclass);
+    e->qtype = qtype;
+    e->qclass = qclass;
+    e->time = get_ms();
+    e->size = esize;
+    e->length = datalen;
+    e->qname = (char *) (e->response + datalen);
+    memcpy(e->qname, qname, qlen);
+
+    struct dns_cache_entry *old = find_dns_cached(cache, e->hash, qname, qtype, qclass);
+    if (old != NULL)
+        remove_dns_cached(cache, old);
+
+    struct dns_cache_entry **bucket = &cache->bucket[e->hash & (DNS_CACHE_BUCKETS - 1)];
+    e->next = *bucket;
+    *bucket = e;
+
+    e->lru_prev = NULL;
+    e->lru_next = cache->lru_head;
+    if (cache->lru_head == NULL)
+        cache->lru_tail = e;
+    else
+        cache->lru_head->lru_prev = e;
+    cache->lru_head = e;
+
+    cache->memory += esize;
+    cache->count++;
+
+    // Evict least recently used entries
+    while (cache->memory > DNS_CACHE_MEMORY && cache->lru_tail != e)
+        remove_dns_cached(cache, cache->lru_tail);
+
+    log_android(ANDROID_LOG_DEBUG, "DNS cache qtype %d qname %s ttl %u entries %d memory %d",
+                qtype, qname, e->ttl, cache->count, (int) cache->memory);
+}
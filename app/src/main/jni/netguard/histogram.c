@@ -0,0 +1,60 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Always-on latency histograms, updated with relaxed atomics only
+// Buckets are log-linear in microseconds: 0-15 exact, then four buckets per power of two
+// The layout must match LatencyHistogram
+
+static uint64_t histograms[HIST_COUNT][HIST_FIELDS];
+
+uint64_t hist_now() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000ULL + (uint64_t) ts.tv_nsec / 1000;
+}
+
+static int hist_bucket(uint64_t us) {
+    if (us < 16)
+        return (int) us;
+    int msb = 63 - __builtin_clzll(us);
+    int bucket = 16 + (msb - 4) * 4 + (int) ((us >> (msb - 2)) & 3);
+    return (bucket < HIST_BUCKETS ? bucket : HIST_BUCKETS - 1);
+}
+
+void hist_record(int id, uint64_t start) {
+    uint64_t now = hist_now();
+    uint64_t us = (now > start ? now - start : 0);
+    uint64_t *h = histograms[id];
+
+    __atomic_add_fetch(&h[0], 1, __ATOMIC_RELAXED);
+    __atomic_add_fetch(&h[1], us, __ATOMIC_RELAXED);
+    uint64_t max = __atomic_load_n(&h[2], __ATOMIC_RELAXED);
+    while (us > max &&
+           !__atomic_compare_exchange_n(&h[2], &max, us, 1, __ATOMIC_RELAXED, __ATOMIC_RELAXED));
+    __atomic_add_fetch(&h[3 + hist_bucket(us)], 1, __ATOMIC_RELAXED);
+}
+
+void get_histograms(jlong *values) {
+    for (int i = 0; i < HIST_COUNT; i++)
+        for (int f = 0; f < HIST_FIELDS; f++)
+            values[i * HIST_FIELDS + f] =
+                    (jlong) __atomic_load_n(&histograms[i][f], __ATOMIC_RELAXED);
+}
@@ -0,0 +1,241 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Blocked hosts compiled by HostsIndex and memory mapped here as well
+// A trie of reversed labels, see HostsIndex for the layout, integers are little endian like the CPU
+// The Bloom filter uses the same hashes as HostsIndex and is checked before walking the trie
+// Replaced mappings are unmapped by the tunnel thread when no lookup is in progress
+
+static uint32_t hosts_int(const struct ng_hosts *hosts, size_t off) {
+    uint32_t value;
+    memcpy(&value, hosts->base + off, sizeof(value));
+    return value;
+}
+
+struct ng_hosts *open_hosts(const char *path) {
+    int fd = open(path, O_RDONLY);
+    if (fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "Hosts %s open error %d: %s", path, errno, strerror(errno));
+        return NULL;
+    }
+
+    struct stat st;
+    if (fstat(fd, &st) || st.st_size < HOSTS_HEADER) {
+        log_android(ANDROID_LOG_ERROR, "Hosts %s invalid size", path);
+        close(fd);
+        return NULL;
+    }
+
+    // The mapping stays valid after closing the file and after the file is replaced
+    void *base = mmap(NULL, (size_t) st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    close(fd);
+    if (base == MAP_FAILED) {
+        log_android(ANDROID_LOG_ERROR, "Hosts %s mmap error %d: %s", path, errno, strerror(errno));
+        return NULL;
+    }
+
+    struct ng_hosts *hosts = ng_malloc(sizeof(struct ng_hosts), "hosts");
+    hosts->base = base;
+    hosts->size = (size_t) st.st_size;
+    hosts->retired = NULL;
+
+    hosts->count = hosts_int(hosts, 8);
+    hosts->nodes = hosts_int(hosts, 12);
+    hosts->labels = hosts_int(hosts, 16);
+    hosts->filter = hosts_int(hosts, 20);
+    hosts->blocks = hosts_int(hosts, 24);
+    hosts->k = hosts_int(hosts, 28);
+    if (hosts_int(hosts, 0) != HOSTS_MAGIC || hosts_int(hosts, 4) != HOSTS_VERSION ||
+        hosts->nodes == 0 || hosts->labels != HOSTS_HEADER + hosts->nodes * HOSTS_NODE ||
+        hosts->labels > hosts->size ||
+        hosts->filter < hosts->labels || hosts->k > 7 ||
+        hosts->filter + (uint64_t) hosts->blocks * HOSTS_FILTER_BLOCK > hosts->size) {
+        log_android(ANDROID_LOG_ERROR, "Hosts %s invalid", path);
+        close_hosts(hosts);
+        return NULL;
+    }
+
+    log_android(ANDROID_LOG_WARN, "Hosts %s mapped count %u nodes %u size %u filter %u k %u",
+                path, hosts->count, hosts->nodes, hosts->size,
+                hosts->blocks * HOSTS_FILTER_BLOCK, hosts->k);
+    return hosts;
+}
+
+void close_hosts(struct ng_hosts *hosts) {
+    if (hosts == NULL)
+        return;
+    if (munmap(hosts->base, hosts->size))
+        log_android(ANDROID_LOG_ERROR, "Hosts munmap error %d: %s", errno, strerror(errno));
+    ng_free(hosts, __FILE__, __LINE__);
+}
+
+// Compare the label of a node with name[0, len), returns 2 if the file is corrupt
+static int compare_label(const struct ng_hosts *hosts, uint32_t node,
+                         const char *name, size_t len) {
+    size_t off = hosts->labels + hosts_int(hosts, HOSTS_HEADER + node * HOSTS_NODE);
+    if (off >= hosts->size || off + 1 + hosts->base[off] > hosts->size)
+        return 2;
+
+    size_t length = hosts->base[off];
+    const uint8_t *label = hosts->base + off + 1;
+    for (size_t i = 0; i < length && i < len; i++) {
+        int c = (int) label[i] - (int) (uint8_t) tolower((uint8_t) name[i]);
+        if (c != 0)
+            return (c < 0 ? -1 : 1);
+    }
+    return (length < len ? -1 : length > len ? 1 : 0);
+}
+
+static int64_t find_child(const struct ng_hosts *hosts, uint32_t node,
+                          const char *name, size_t len) {
+    size_t off = HOSTS_HEADER + node * HOSTS_NODE;
+    int64_t lo = hosts_int(hosts, off + 4);
+    int64_t hi = lo + (hosts_int(hosts, off + 8) & HOSTS_CHILDREN) - 1;
+    if (hi >= hosts->nodes)
+        return -1;
+
+    while (lo <= hi) {
+        int64_t mid = (lo + hi) / 2;
+        int c = compare_label(hosts, (uint32_t) mid, name, len);
+        if (c == 2)
+            return -1;
+        if (c < 0)
+            lo = mid + 1;
+        else if (c > 0)
+            hi = mid - 1;
+        else
+            return mid;
+    }
+    return -1;
+}
+
+// 64 bit FNV-1a of the lower case name, finalized like MurmurHash3
+static uint64_t hosts_hash(const char *name, size_t len, int wildcard) {
+    uint64_t h = 0xcbf29ce484222325ULL;
+    for (size_t i = 0; i < len; i++)
+        h = (h ^ (uint8_t) tolower((uint8_t) name[i])) * 0x100000001b3ULL;
+    if (wildcard)
+        h ^= HOSTS_FILTER_WILDCARD;
+    h ^= h >> 33;
+    h *= 0xff51afd7ed558ccdULL;
+    h ^= h >> 33;
+    h *= 0xc4ceb9fe1a85ec53ULL;
+    h ^= h >> 33;
+    return h;
+}
+
+static uint64_t hosts_rehash(uint64_t h) {
+    h ^= HOSTS_FILTER_WILDCARD;
+    h ^= h >> 33;
+    h *= 0xff51afd7ed558ccdULL;
+    h ^= h >> 33;
+    h *= 0xc4ceb9fe1a85ec53ULL;
+    h ^= h >> 33;
+    return h;
+}
+
+// All bits are in one block, a single cache line
+static int test_filter(const struct ng_hosts *hosts, uint64_t h) {
+    const uint8_t *block = hosts->base + hosts->filter +
+                           ((h >> 32) * hosts->blocks >> 32) * HOSTS_FILTER_BLOCK;
+    uint64_t bits = hosts_rehash(h);
+    for (uint32_t i = 0; i < hosts->k; i++) {
+        uint32_t bit = (uint32_t) (bits >> (i * 9)) & 511;
+        if (!(block[bit >> 3] & (1 << (bit & 7))))
+            return 0;
+    }
+    return 1;
+}
+
+// Zero means the name is not blocked, neither the name itself nor a parent domain as wildcard
+static int might_be_blocked(const struct ng_hosts *hosts, const char *name, size_t end) {
+    if (test_filter(hosts, hosts_hash(name, end, 0)))
+        return 1;
+    for (size_t i = 0; i < end; i++)
+        if (name[i] == '.' && test_filter(hosts, hosts_hash(name + i + 1, end - i - 1, 1)))
+            return 1;
+    return 0;
+}
+
+int is_hosts_blocked(const struct ng_hosts *hosts, const char *name) {
+    if (hosts == NULL || hosts->count == 0 || name == NULL)
+        return 0;
+
+    size_t end = strlen(name);
+    if (end > 0 && name[end - 1] == '.')
+        end--;
+
+    if (hosts->blocks > 0 && !might_be_blocked(hosts, name, end))
+        return 0;
+
+    // Walk the labels from right to left
+    uint32_t node = 0;
+    while (end > 0) {
+        size_t start = end;
+        while (start > 0 && name[start - 1] != '.')
+            start--;
+
+        int64_t child = find_child(hosts, node, name + start, end - start);
+        if (child < 0)
+            return 0;
+        node = (uint32_t) child;
+
+        uint32_t flags = hosts_int(hosts, HOSTS_HEADER + node * HOSTS_NODE + 8) >> 30;
+        if (start == 0)
+            return ((flags & HOSTS_EXACT) != 0);
+        if (flags & HOSTS_WILDCARD)
+            return 1;
+        end = start - 1;
+    }
+    return 0;
+}
+
+void set_hosts(struct context *ctx, struct ng_hosts *hosts) {
+    if (pthread_mutex_lock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct ng_hosts *old = ctx->hosts;
+    __atomic_store_n(&ctx->hosts, hosts, __ATOMIC_RELEASE);
+    if (old != NULL) {
+        old->retired = ctx->hosts_retired;
+        ctx->hosts_retired = old;
+    }
+
+    if (pthread_mutex_unlock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+void free_retired_hosts(struct context *ctx) {
+    if (pthread_mutex_lock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct ng_hosts *retired = ctx->hosts_retired;
+    ctx->hosts_retired = NULL;
+
+    if (pthread_mutex_unlock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    while (retired != NULL) {
+        struct ng_hosts *next = retired->retired;
+        close_hosts(retired);
+        retired = next;
+    }
+}
@@ -79,7 +79,9 @@ int check_tun(const struct arguments *args,
             }
 
             // Handle IP from tun
+            uint64_t hist_start = hist_now();
             handle_ip(args, buffer, (size_t) length, epoll_fd, sessions, maxsessions);
+            hist_record(HIST_HANDLE_IP, hist_start);
 
             ng_free(buffer, __FILE__, __LINE__);
         } else {
@@ -116,6 +118,18 @@ int is_upper_layer(int protocol) {
             protocol == IPPROTO_ICMPV6);
 }
 
+static void log_verdict(const struct arguments *args,
+                        jint version, jint protocol, const char *flags,
+                        const char *source, jint sport, const char *dest, jint dport,
+                        const char *data, jint uid, int allowed, const struct allowed *redirect) {
+    char rdata[INET6_ADDRSTRLEN + 10];
+    if (redirect != NULL && *redirect->raddr) {
+        sprintf(rdata, "> %s/%u", redirect->raddr, redirect->rport);
+        data = rdata;
+    }
+    queue_packet(args, version, protocol, flags, source, sport, dest, dport, data, uid, (jboolean) allowed);
+}
+
 void handle_ip(const struct arguments *args,
                const uint8_t *pkt, const size_t length,
                const int epoll_fd,
@@ -286,10 +300,12 @@ void handle_ip(const struct arguments *args,
     if (protocol == IPPROTO_ICMP || protocol == IPPROTO_ICMPV6 ||
         (protocol == IPPROTO_UDP && !has_udp_session(args, pkt, payload)) ||
         (protocol == IPPROTO_TCP && syn)) {
+        uint64_t hist_start = hist_now();
         if (args->ctx->sdk <= 28) // Android 9 Pie
             uid = get_uid(version, protocol, saddr, sport, daddr, dport);
         else
             uid = get_uid_q(args, version, protocol, source, sport, dest, dport);
+        hist_record(HIST_GET_UID, hist_start);
     }
 
     log_android(ANDROID_LOG_DEBUG,
@@ -304,12 +320,59 @@ void handle_ip(const struct arguments *args,
     else if (protocol == IPPROTO_TCP && (!syn || (uid == 0 && dport == 53)))
         allowed = 1; // assume existing session
     else {
-        jobject objPacket = create_packet(
-                args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
-        redirect = is_address_allowed(args, objPacket);
-        allowed = (redirect != NULL);
-        if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
-            redirect = NULL;
+        struct ng_policy *policy = __atomic_load_n(&args->ctx->policy, __ATOMIC_ACQUIRE);
+        struct verdict_entry *verdict;
+        // Rules for a just resolved address might not have been applied yet
+        uint32_t resolving = is_resolving(args, version, daddr);
+        if (resolving && hold_resolving(args, resolving, pkt, length))
+            return; // decided when released
+
+        if (policy != NULL && !resolving) {
+            // Decide without calling into Java
+            redirect = is_policy_allowed(policy, uid, version, protocol, daddr, dport);
+            allowed = (redirect != NULL);
+
+            // Java only needs to know when logging
+            if (policy->log && (protocol != IPPROTO_TCP || *flags) && uid != policy->self)
+                log_verdict(args, version, protocol, flags, source, sport, dest, dport,
+                            data, uid, allowed, redirect);
+
+            if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
+                redirect = NULL;
+        } else if (!resolving &&
+                   (verdict = get_verdict(args, uid, version, protocol, daddr, dport)) != NULL) {
+            allowed = verdict->allowed;
+            redirect = (verdict->redirected ? &verdict->redirect : NULL);
+        } else {
+            // Read the generation before asking, a concurrent rule change will invalidate the result
+            uint32_t generation = __atomic_load_n(&args->ctx->verdict_generation, __ATOMIC_ACQUIRE);
+            jint verdict = is_address_allowed_raw(args, version, protocol, daddr, dport, uid,
+                                                  (protocol != IPPROTO_TCP || *flags));
+            allowed = ((verdict & VERDICT_ALLOWED) != 0);
+
+            int index = (verdict >> VERDICT_FORWARD_SHIFT) - 1;
+            if (allowed && index >= 0) {
+                struct ng_policy *current = __atomic_load_n(&args->ctx->policy, __ATOMIC_ACQUIRE);
+                redirect = (current == NULL ? NULL : get_policy_forward(current, index, dport));
+                if (redirect == NULL) {
+                    // Forwarding rule not known here, Java will log the packet
+                    jobject objPacket = create_packet(
+                            args, version, protocol, flags, source, sport, dest, dport, data, uid, 0);
+                    redirect = is_address_allowed(args, objPacket);
+                    allowed = (redirect != NULL);
+                    verdict &= ~VERDICT_LOG;
+                }
+            }
+
+            if (verdict & VERDICT_LOG)
+                log_verdict(args, version, protocol, flags, source, sport, dest, dport,
+                            data, uid, allowed, redirect);
+
+            if (redirect != NULL && (*redirect->raddr == 0 || redirect->rport == 0))
+                redirect = NULL;
+            if (!resolving)
+                put_verdict(args, uid, version, protocol, daddr, dport, generation, allowed, redirect);
+        }
     }
 
     // Handle allowed traffic
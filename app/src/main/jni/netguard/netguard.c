@@ -123,6 +123,12 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1init(
 
     if (pthread_mutex_init(&ctx->lock, NULL))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+    if (pthread_mutex_init(&ctx->policy_lock, NULL))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_init failed");
+
+    init_verdict_cache(ctx);
+    init_dns_cache(ctx);
+    init_resolving(ctx);
 
     // Create signal pipe
     if (pipe(ctx->pipefds))
@@ -186,6 +192,17 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1stop(
         log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1recheck(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    __atomic_store_n(&ctx->recheck, 1, __ATOMIC_RELEASE);
+
+    log_android(ANDROID_LOG_WARN, "Write pipe recheck");
+    if (write(ctx->pipefds[1], "r", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1clear(
         JNIEnv *env, jobject instance, jlong context) {
@@ -206,7 +223,7 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     if (pthread_mutex_lock(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
 
-    jintArray jarray = (*env)->NewIntArray(env, 5);
+    jintArray jarray = (*env)->NewIntArray(env, 10);
     jint *jcount = (*env)->GetIntArrayElements(env, jarray, NULL);
 
     struct ng_session *s = ctx->ng_session;
@@ -242,10 +259,163 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1stats(
     getrlimit(RLIMIT_NOFILE, &rlim);
     jcount[4] = (jint) rlim.rlim_cur;
 
+    jcount[5] = (jint) __atomic_load_n(&ctx->verdict_hits, __ATOMIC_RELAXED);
+    jcount[6] = (jint) __atomic_load_n(&ctx->verdict_misses, __ATOMIC_RELAXED);
+    jcount[7] = (jint) (ctx->ring == NULL ? 0 : get_ring_drops(ctx->ring));
+    jcount[8] = (jint) __atomic_load_n(&ctx->dns_hits, __ATOMIC_RELAXED);
+    jcount[9] = (jint) __atomic_load_n(&ctx->dns_misses, __ATOMIC_RELAXED);
+
     (*env)->ReleaseIntArrayElements(env, jarray, jcount, 0);
     return jarray;
 }
 
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1hosts(
+        JNIEnv *env, jobject instance, jlong context, jstring path_) {
+    struct context *ctx = (struct context *) context;
+
+    struct ng_hosts *hosts = NULL;
+    if (path_ != NULL) {
+        const char *path = (*env)->GetStringUTFChars(env, path_, 0);
+        ng_add_alloc(path, "path");
+        hosts = open_hosts(path);
+        (*env)->ReleaseStringUTFChars(env, path_, path);
+        ng_delete_alloc(path, __FILE__, __LINE__);
+    }
+
+    set_hosts(ctx, hosts);
+}
+
+JNIEXPORT jlongArray JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1get_1histograms(JNIEnv *env, jclass type) {
+    jlongArray jarray = (*env)->NewLongArray(env, HIST_COUNT * HIST_FIELDS);
+    jlong *jvalues = (*env)->GetLongArrayElements(env, jarray, NULL);
+    get_histograms(jvalues);
+    (*env)->ReleaseLongArrayElements(env, jarray, jvalues, 0);
+    return jarray;
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1generation(
+        JNIEnv *env, jobject instance, jlong context, jint generation, jboolean cache) {
+    struct context *ctx = (struct context *) context;
+    ctx->verdict_enabled = cache;
+    __atomic_store_n(&ctx->verdict_generation, (uint32_t) generation, __ATOMIC_RELEASE);
+    log_android(ANDROID_LOG_DEBUG, "Policy generation %d cache %d", generation, cache);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1resolved(
+        JNIEnv *env, jobject instance, jlong context, jint seq) {
+    struct context *ctx = (struct context *) context;
+    __atomic_store_n(&ctx->resolved_applied, (uint32_t) seq, __ATOMIC_RELEASE);
+
+    // Wakeup to release held packets
+    if (__atomic_load_n(&ctx->held_count, __ATOMIC_ACQUIRE) > 0 &&
+        write(ctx->pipefds[1], "r", 1) < 0)
+        log_android(ANDROID_LOG_WARN, "Write pipe error %d: %s", errno, strerror(errno));
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1set_1policy(
+        JNIEnv *env, jobject instance, jlong context,
+        jboolean filter, jboolean filter_udp, jboolean log, jint self,
+        jintArray uids_, jintArray uid_flags_,
+        jintArray rule_keys_, jbyteArray rule_addrs_, jlongArray rule_expires_,
+        jintArray forwards_, jobjectArray forward_addrs_,
+        jintArray names_) {
+    struct context *ctx = (struct context *) context;
+
+    jsize uids = (*env)->GetArrayLength(env, uids_);
+    jsize rules = (*env)->GetArrayLength(env, rule_expires_);
+    jsize forwards = (*env)->GetArrayLength(env, forward_addrs_);
+    jsize names = (*env)->GetArrayLength(env, names_);
+
+    struct ng_policy *policy = new_policy(uids, rules, forwards, names);
+    policy->filter = filter;
+    policy->filter_udp = filter_udp;
+    policy->log = log;
+    policy->self = self;
+
+    jint *uid = (*env)->GetIntArrayElements(env, uids_, NULL);
+    jint *uid_flags = (*env)->GetIntArrayElements(env, uid_flags_, NULL);
+    for (int i = 0; i < uids; i++)
+        add_policy_uid(policy, uid[i], uid_flags[i]);
+    (*env)->ReleaseIntArrayElements(env, uids_, uid, JNI_ABORT);
+    (*env)->ReleaseIntArrayElements(env, uid_flags_, uid_flags, JNI_ABORT);
+
+    // uid, version, protocol, port, block
+    jint *rule_keys = (*env)->GetIntArrayElements(env, rule_keys_, NULL);
+    jbyte *rule_addrs = (*env)->GetByteArrayElements(env, rule_addrs_, NULL);
+    jlong *rule_expires = (*env)->GetLongArrayElements(env, rule_expires_, NULL);
+    for (int i = 0; i < rules; i++) {
+        jint *key = rule_keys + i * 5;
+        add_policy_rule(policy, key[0], (uint8_t) key[1], (uint8_t) key[2], (uint16_t) key[3],
+                        (const uint8_t *) rule_addrs + i * 16, key[4], rule_expires[i]);
+    }
+    (*env)->ReleaseIntArrayElements(env, rule_keys_, rule_keys, JNI_ABORT);
+    (*env)->ReleaseByteArrayElements(env, rule_addrs_, rule_addrs, JNI_ABORT);
+    (*env)->ReleaseLongArrayElements(env, rule_expires_, rule_expires, JNI_ABORT);
+
+    // port, rport, ruid
+    jint *fwd = (*env)->GetIntArrayElements(env, forwards_, NULL);
+    for (int i = 0; i < forwards; i++) {
+        policy->forwards[i].dport = (uint16_t) fwd[i * 3];
+        policy->forwards[i].redirect.rport = (uint16_t) fwd[i * 3 + 1];
+        policy->forwards[i].ruid = fwd[i * 3 + 2];
+
+        jstring jraddr = (*env)->GetObjectArrayElement(env, forward_addrs_, i);
+        const char *raddr = (*env)->GetStringUTFChars(env, jraddr, NULL);
+        ng_add_alloc(raddr, "raddr");
+        strncpy(policy->forwards[i].redirect.raddr, raddr, INET6_ADDRSTRLEN);
+        (*env)->ReleaseStringUTFChars(env, jraddr, raddr);
+        ng_delete_alloc(raddr, __FILE__, __LINE__);
+        (*env)->DeleteLocalRef(env, jraddr);
+    }
+    (*env)->ReleaseIntArrayElements(env, forwards_, fwd, JNI_ABORT);
+
+    // Sorted by Java, compared unsigned
+    if (names > 0)
+        (*env)->GetIntArrayRegion(env, names_, 0, names, (jint *) policy->names);
+
+    set_policy(ctx, policy);
+
+    log_android(ANDROID_LOG_WARN, "Policy filter %d/%d log %d uids %d rules %d forwards %d names %d",
+                filter, filter_udp, log, uids, rules, forwards, names);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_ServiceSinkhole_jni_1add_1rules(
+        JNIEnv *env, jobject instance, jlong context,
+        jintArray rule_keys_, jbyteArray rule_addrs_, jlongArray rule_expires_) {
+    struct context *ctx = (struct context *) context;
+
+    // Without a policy, the next full policy has the rules
+    struct ng_policy *current = __atomic_load_n(&ctx->policy, __ATOMIC_ACQUIRE);
+    if (current == NULL)
+        return;
+
+    jsize rules = (*env)->GetArrayLength(env, rule_expires_);
+    struct ng_policy *policy = copy_policy(current, rules);
+
+    // uid, version, protocol, port, block
+    jint *rule_keys = (*env)->GetIntArrayElements(env, rule_keys_, NULL);
+    jbyte *rule_addrs = (*env)->GetByteArrayElements(env, rule_addrs_, NULL);
+    jlong *rule_expires = (*env)->GetLongArrayElements(env, rule_expires_, NULL);
+    for (int i = 0; i < rules; i++) {
+        jint *key = rule_keys + i * 5;
+        add_policy_rule(policy, key[0], (uint8_t) key[1], (uint8_t) key[2], (uint16_t) key[3],
+                        (const uint8_t *) rule_addrs + i * 16, key[4], rule_expires[i]);
+    }
+    (*env)->ReleaseIntArrayElements(env, rule_keys_, rule_keys, JNI_ABORT);
+    (*env)->ReleaseByteArrayElements(env, rule_addrs_, rule_addrs, JNI_ABORT);
+    (*env)->ReleaseLongArrayElements(env, rule_expires_, rule_expires, JNI_ABORT);
+
+    set_policy(ctx, policy);
+
+    log_android(ANDROID_LOG_DEBUG, "Policy rules added %d", rules);
+}
+
 JNIEXPORT void JNICALL
 Java_eu_faircode_netguard_ServiceSinkhole_jni_1pcap(
         JNIEnv *env, jclass type,
@@ -342,6 +512,13 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     if (pthread_mutex_destroy(&ctx->lock))
         log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
 
+    set_policy(ctx, NULL);
+    free_retired_policies(ctx);
+    set_hosts(ctx, NULL);
+    free_retired_hosts(ctx);
+    if (pthread_mutex_destroy(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_destroy failed");
+
     for (int i = 0; i < 2; i++)
         if (close(ctx->pipefds[i]))
             log_android(ANDROID_LOG_ERROR, "Close pipe error %d: %s", errno, strerror(errno));
@@ -351,9 +528,53 @@ Java_eu_faircode_netguard_ServiceSinkhole_jni_1done(
     uid_cache_size = 0;
     uid_cache = NULL;
 
+    free_verdict_cache(ctx);
+    free_dns_cache(ctx);
+    free_resolving(ctx);
+
+    free_ring(ctx->ring);
+    ctx->ring = NULL;
+
     ng_free(ctx, __FILE__, __LINE__);
 }
 
+// JNI EventRing
+
+JNIEXPORT jboolean JNICALL
+Java_eu_faircode_netguard_EventRing_jni_1ring_1init(
+        JNIEnv *env, jobject instance, jlong context, jobject buffer) {
+    struct context *ctx = (struct context *) context;
+    uint8_t *base = (*env)->GetDirectBufferAddress(env, buffer);
+    jlong size = (*env)->GetDirectBufferCapacity(env, buffer);
+    if (base == NULL || size <= RING_HEADER)
+        return 0;
+
+    free_ring(ctx->ring);
+    ctx->ring = init_ring(base, (size_t) size);
+    return (jboolean) (ctx->ring != NULL);
+}
+
+JNIEXPORT jlong JNICALL
+Java_eu_faircode_netguard_EventRing_jni_1ring_1wait(
+        JNIEnv *env, jobject instance, jlong context, jint timeout) {
+    struct context *ctx = (struct context *) context;
+    return (jlong) wait_ring(ctx->ring, timeout);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_EventRing_jni_1ring_1release(
+        JNIEnv *env, jobject instance, jlong context, jlong tail) {
+    struct context *ctx = (struct context *) context;
+    release_ring(ctx->ring, (uint64_t) tail);
+}
+
+JNIEXPORT void JNICALL
+Java_eu_faircode_netguard_EventRing_jni_1ring_1wakeup(
+        JNIEnv *env, jobject instance, jlong context) {
+    struct context *ctx = (struct context *) context;
+    wakeup_ring(ctx->ring);
+}
+
 // JNI Util
 
 JNIEXPORT jstring JNICALL
@@ -580,9 +801,17 @@ jfieldID fidQName = NULL;
 jfieldID fidAName = NULL;
 jfieldID fidResource = NULL;
 jfieldID fidTTL = NULL;
+jfieldID fidType = NULL;
 
 void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl) {
+                  const char *qname, const struct dns_answer *answers, int count) {
+    uint64_t hist_start = hist_now();
+    uint32_t seq = mark_resolving(args, qname, answers, count);
+    if (ring_resolved(args, seq, qname, answers, count)) {
+        hist_record(HIST_DNS_RESOLVED, hist_start);
+        return;
+    }
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -592,7 +821,7 @@ void dns_resolved(const struct arguments *args,
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
-    const char *signature = "(Leu/faircode/netguard/ResourceRecord;)V";
+    const char *signature = "(I[Leu/faircode/netguard/ResourceRecord;)V";
     if (midDnsResolved == NULL)
         midDnsResolved = jniGetMethodID(args->env, clsService, "dnsResolved", signature);
 
@@ -600,9 +829,6 @@ void dns_resolved(const struct arguments *args,
     if (midInitRR == NULL)
         midInitRR = jniGetMethodID(args->env, clsRR, "<init>", "()V");
 
-    jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
-    ng_add_alloc(jrr, "jrr");
-
     if (fidQTime == NULL) {
         const char *string = "Ljava/lang/String;";
         fidQTime = jniGetFieldID(args->env, clsRR, "Time", "J");
@@ -610,36 +836,53 @@ void dns_resolved(const struct arguments *args,
         fidAName = jniGetFieldID(args->env, clsRR, "AName", string);
         fidResource = jniGetFieldID(args->env, clsRR, "Resource", string);
         fidTTL = jniGetFieldID(args->env, clsRR, "TTL", "I");
+        fidType = jniGetFieldID(args->env, clsRR, "Type", "I");
     }
 
+    jobjectArray jrrs = (*args->env)->NewObjectArray(args->env, count, clsRR, NULL);
+    ng_add_alloc(jrrs, "jrrs");
+
     jlong jtime = time(NULL) * 1000LL;
     jstring jqname = (*args->env)->NewStringUTF(args->env, qname);
-    jstring janame = (*args->env)->NewStringUTF(args->env, aname);
-    jstring jresource = (*args->env)->NewStringUTF(args->env, resource);
     ng_add_alloc(jqname, "jqname");
-    ng_add_alloc(janame, "janame");
-    ng_add_alloc(jresource, "jresource");
 
-    (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
-    (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
-    (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
-    (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
-    (*args->env)->SetIntField(args->env, jrr, fidTTL, ttl);
+    for (int i = 0; i < count; i++) {
+        jobject jrr = jniNewObject(args->env, clsRR, midInitRR, rr);
+        ng_add_alloc(jrr, "jrr");
+
+        jstring janame = (*args->env)->NewStringUTF(args->env, answers[i].aname);
+        jstring jresource = (*args->env)->NewStringUTF(args->env, answers[i].resource);
+        ng_add_alloc(janame, "janame");
+        ng_add_alloc(jresource, "jresource");
+
+        (*args->env)->SetLongField(args->env, jrr, fidQTime, jtime);
+        (*args->env)->SetObjectField(args->env, jrr, fidQName, jqname);
+        (*args->env)->SetObjectField(args->env, jrr, fidAName, janame);
+        (*args->env)->SetObjectField(args->env, jrr, fidResource, jresource);
+        (*args->env)->SetIntField(args->env, jrr, fidTTL, answers[i].ttl);
+        (*args->env)->SetIntField(args->env, jrr, fidType, answers[i].qtype);
+        (*args->env)->SetObjectArrayElement(args->env, jrrs, i, jrr);
+
+        (*args->env)->DeleteLocalRef(args->env, jresource);
+        (*args->env)->DeleteLocalRef(args->env, janame);
+        (*args->env)->DeleteLocalRef(args->env, jrr);
+        ng_delete_alloc(jresource, __FILE__, __LINE__);
+        ng_delete_alloc(janame, __FILE__, __LINE__);
+        ng_delete_alloc(jrr, __FILE__, __LINE__);
+    }
 
-    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, jrr);
+    (*args->env)->CallVoidMethod(args->env, args->instance, midDnsResolved, (jint) seq, jrrs);
     jniCheckException(args->env);
 
-    (*args->env)->DeleteLocalRef(args->env, jresource);
-    (*args->env)->DeleteLocalRef(args->env, janame);
     (*args->env)->DeleteLocalRef(args->env, jqname);
-    (*args->env)->DeleteLocalRef(args->env, jrr);
+    (*args->env)->DeleteLocalRef(args->env, jrrs);
     (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jresource, __FILE__, __LINE__);
-    ng_delete_alloc(janame, __FILE__, __LINE__);
     ng_delete_alloc(jqname, __FILE__, __LINE__);
-    ng_delete_alloc(jrr, __FILE__, __LINE__);
+    ng_delete_alloc(jrrs, __FILE__, __LINE__);
     ng_delete_alloc(clsService, __FILE__, __LINE__);
 
+    hist_record(HIST_DNS_RESOLVED, hist_start);
+
 #ifdef PROFILE_JNI
     gettimeofday(&end, NULL);
     mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
@@ -649,43 +892,15 @@ void dns_resolved(const struct arguments *args,
 #endif
 }
 
-static jmethodID midIsDomainBlocked = NULL;
-
 jboolean is_domain_blocked(const struct arguments *args, const char *name) {
-#ifdef PROFILE_JNI
-    float mselapsed;
-    struct timeval start, end;
-    gettimeofday(&start, NULL);
-#endif
+    uint64_t hist_start = hist_now();
 
-    jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
-    ng_add_alloc(clsService, "clsService");
-
-    const char *signature = "(Ljava/lang/String;)Z";
-    if (midIsDomainBlocked == NULL)
-        midIsDomainBlocked = jniGetMethodID(args->env, clsService, "isDomainBlocked", signature);
-
-    jstring jname = (*args->env)->NewStringUTF(args->env, name);
-    ng_add_alloc(jname, "jname");
-
-    jboolean jallowed = (*args->env)->CallBooleanMethod(
-            args->env, args->instance, midIsDomainBlocked, jname);
-    jniCheckException(args->env);
+    // Decided on the mapped hosts file, without calling into Java
+    struct ng_hosts *hosts = __atomic_load_n(&args->ctx->hosts, __ATOMIC_ACQUIRE);
+    jboolean blocked = (jboolean) is_hosts_blocked(hosts, name);
 
-    (*args->env)->DeleteLocalRef(args->env, jname);
-    (*args->env)->DeleteLocalRef(args->env, clsService);
-    ng_delete_alloc(jname, __FILE__, __LINE__);
-    ng_delete_alloc(clsService, __FILE__, __LINE__);
-
-#ifdef PROFILE_JNI
-    gettimeofday(&end, NULL);
-    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
-                (end.tv_usec - start.tv_usec) / 1000.0;
-    if (mselapsed > PROFILE_JNI)
-        log_android(ANDROID_LOG_WARN, "is_domain_blocked %f", mselapsed);
-#endif
-
-    return jallowed;
+    hist_record(HIST_DOMAIN_BLOCKED, hist_start);
+    return blocked;
 }
 
 static jmethodID midGetUidQ = NULL;
@@ -747,6 +962,8 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     gettimeofday(&start, NULL);
 #endif
 
+    uint64_t hist_start = hist_now();
+
     jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
     ng_add_alloc(clsService, "clsService");
 
@@ -791,6 +1008,8 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     ng_delete_alloc(clsService, __FILE__, __LINE__);
     ng_delete_alloc(jallowed, __FILE__, __LINE__);
 
+    hist_record(HIST_ADDRESS_ALLOWED, hist_start);
+
 #ifdef PROFILE_JNI
     gettimeofday(&end, NULL);
     mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
@@ -802,6 +1021,60 @@ struct allowed *is_address_allowed(const struct arguments *args, jobject jpacket
     return (jallowed == NULL ? NULL : &allowed);
 }
 
+static jmethodID midIsAddressAllowedRaw = NULL;
+
+jint is_address_allowed_raw(const struct arguments *args,
+                            jint version, jint protocol, const void *daddr, jint dport,
+                            jint uid, jboolean loggable) {
+#ifdef PROFILE_JNI
+    float mselapsed;
+    struct timeval start, end;
+    gettimeofday(&start, NULL);
+#endif
+
+    uint64_t hist_start = hist_now();
+
+    if (midIsAddressAllowedRaw == NULL) {
+        jclass clsService = (*args->env)->GetObjectClass(args->env, args->instance);
+        ng_add_alloc(clsService, "clsService");
+        midIsAddressAllowedRaw = jniGetMethodID(
+                args->env, clsService, "isAddressAllowedRaw", "(IIIIIJJZ)I");
+        (*args->env)->DeleteLocalRef(args->env, clsService);
+        ng_delete_alloc(clsService, __FILE__, __LINE__);
+    }
+
+    // Raw destination address
+    const uint8_t *a = (const uint8_t *) daddr;
+    jint daddr4 = 0;
+    jlong daddr6hi = 0;
+    jlong daddr6lo = 0;
+    if (version == 4)
+        daddr4 = (jint) (((uint32_t) a[0] << 24) | (a[1] << 16) | (a[2] << 8) | a[3]);
+    else
+        for (int i = 0; i < 8; i++) {
+            daddr6hi = (daddr6hi << 8) | a[i];
+            daddr6lo = (daddr6lo << 8) | a[i + 8];
+        }
+
+    jint verdict = (*args->env)->CallIntMethod(
+            args->env, args->instance, midIsAddressAllowedRaw,
+            version, protocol, dport, uid, daddr4, daddr6hi, daddr6lo, loggable);
+    if (jniCheckException(args->env))
+        verdict = 0;
+
+    hist_record(HIST_ADDRESS_ALLOWED, hist_start);
+
+#ifdef PROFILE_JNI
+    gettimeofday(&end, NULL);
+    mselapsed = (end.tv_sec - start.tv_sec) * 1000.0 +
+                (end.tv_usec - start.tv_usec) / 1000.0;
+    if (mselapsed > PROFILE_JNI)
+        log_android(ANDROID_LOG_WARN, "is_address_allowed_raw %f", mselapsed);
+#endif
+
+    return verdict;
+}
+
 jmethodID midInitPacket = NULL;
 
 jfieldID fidTime = NULL;
@@ -811,6 +1084,9 @@ jfieldID fidFlags = NULL;
 jfieldID fidSaddr = NULL;
 jfieldID fidSport = NULL;
 jfieldID fidDaddr = NULL;
+jfieldID fidDaddr4 = NULL;
+jfieldID fidDaddr6hi = NULL;
+jfieldID fidDaddr6lo = NULL;
 jfieldID fidDport = NULL;
 jfieldID fidData = NULL;
 jfieldID fidUid = NULL;
@@ -856,12 +1132,32 @@ jobject create_packet(const struct arguments *args,
         fidSaddr = jniGetFieldID(env, clsPacket, "saddr", string);
         fidSport = jniGetFieldID(env, clsPacket, "sport", "I");
         fidDaddr = jniGetFieldID(env, clsPacket, "daddr", string);
+        fidDaddr4 = jniGetFieldID(env, clsPacket, "daddr4", "I");
+        fidDaddr6hi = jniGetFieldID(env, clsPacket, "daddr6hi", "J");
+        fidDaddr6lo = jniGetFieldID(env, clsPacket, "daddr6lo", "J");
         fidDport = jniGetFieldID(env, clsPacket, "dport", "I");
         fidData = jniGetFieldID(env, clsPacket, "data", string);
         fidUid = jniGetFieldID(env, clsPacket, "uid", "I");
         fidAllowed = jniGetFieldID(env, clsPacket, "allowed", "Z");
     }
 
+    // Raw destination address for allocation free lookups
+    jint daddr4 = 0;
+    jlong daddr6hi = 0;
+    jlong daddr6lo = 0;
+    if (version == 4) {
+        struct in_addr a4;
+        if (inet_pton(AF_INET, dest, &a4) == 1)
+            daddr4 = (jint) ntohl(a4.s_addr);
+    } else {
+        struct in6_addr a6;
+        if (inet_pton(AF_INET6, dest, &a6) == 1)
+            for (int i = 0; i < 8; i++) {
+                daddr6hi = (daddr6hi << 8) | a6.s6_addr[i];
+                daddr6lo = (daddr6lo << 8) | a6.s6_addr[i + 8];
+            }
+    }
+
     struct timeval tv;
     gettimeofday(&tv, NULL);
     jlong t = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
@@ -881,6 +1177,9 @@ jobject create_packet(const struct arguments *args,
     (*env)->SetObjectField(env, jpacket, fidSaddr, jsource);
     (*env)->SetIntField(env, jpacket, fidSport, sport);
     (*env)->SetObjectField(env, jpacket, fidDaddr, jdest);
+    (*env)->SetIntField(env, jpacket, fidDaddr4, daddr4);
+    (*env)->SetLongField(env, jpacket, fidDaddr6hi, daddr6hi);
+    (*env)->SetLongField(env, jpacket, fidDaddr6lo, daddr6lo);
     (*env)->SetIntField(env, jpacket, fidDport, dport);
     (*env)->SetObjectField(env, jpacket, fidData, jdata);
     (*env)->SetIntField(env, jpacket, fidUid, uid);
@@ -920,6 +1219,9 @@ jfieldID fidUsageReceived = NULL;
 
 void account_usage(const struct arguments *args, jint version, jint protocol,
                    const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
+    if (ring_usage(args, version, protocol, daddr, dport, uid, sent, received))
+        return;
+
 #ifdef PROFILE_JNI
     float mselapsed;
     struct timeval start, end;
@@ -18,6 +18,8 @@
 #include <dlfcn.h>
 #include <sys/stat.h>
 #include <sys/resource.h>
+#include <sys/eventfd.h>
+#include <sys/mman.h>
 
 #include <netdb.h>
 #include <arpa/inet.h>
@@ -69,6 +71,47 @@
 
 #define UID_MAX_AGE 30000 // milliseconds
 
+#define RING_HEADER 64 // bytes
+#define RING_RECORD_MAX 1024 // bytes
+#define RING_PAD 0
+#define RING_PACKET 1
+#define RING_USAGE 2
+#define RING_RESOLVED 3
+#define RING_WAIT 1000 // milliseconds
+
+#define VERDICT_ALLOWED 1
+#define VERDICT_LOG 2
+#define VERDICT_FORWARD_SHIFT 8 // forwarding rule index + 1
+
+#define POLICY_UID_KNOWN 1
+#define POLICY_UID_ALLOWED 2
+
+#define VERDICT_CACHE_SIZE 1024 // entries, power of two
+#define VERDICT_TTL 15000 // milliseconds
+
+#define RESOLVING_SIZE 256 // entries, power of two
+#define RESOLVING_TTL 2000 // milliseconds
+#define RESOLVING_HELD 64 // packets
+
+#define HOSTS_MAGIC 0x4948474E // NGHI
+#define HOSTS_VERSION 3
+#define HOSTS_HEADER 32 // bytes
+#define HOSTS_NODE 12 // bytes
+#define HOSTS_CHILDREN ((1 << 30) - 1)
+#define HOSTS_EXACT 1
+#define HOSTS_WILDCARD 2
+#define HOSTS_FILTER_BLOCK 64 // bytes
+#define HOSTS_FILTER_WILDCARD 0x9E3779B97F4A7C15ULL
+
+#define HIST_HANDLE_IP 0
+#define HIST_ADDRESS_ALLOWED 1
+#define HIST_GET_UID 2
+#define HIST_DNS_RESOLVED 3
+#define HIST_DOMAIN_BLOCKED 4
+#define HIST_COUNT 5
+#define HIST_BUCKETS 96 // up to about 16 seconds
+#define HIST_FIELDS (3 + HIST_BUCKETS) // count, sum, max, buckets
+
 #define SOCKS5_NONE 1
 #define SOCKS5_HELLO 2
 #define SOCKS5_AUTH 3
@@ -79,8 +122,29 @@ struct context {
     pthread_mutex_t lock;
     int pipefds[2];
     int stopping;
+    int recheck;
     int sdk;
     struct ng_session *ng_session;
+    struct ng_ring *ring;
+    pthread_mutex_t policy_lock;
+    struct ng_policy *policy;
+    struct ng_policy *policy_retired;
+    struct ng_hosts *hosts;
+    struct ng_hosts *hosts_retired;
+    struct verdict_entry *verdict_cache;
+    uint32_t verdict_generation;
+    int verdict_enabled;
+    uint64_t verdict_hits;
+    uint64_t verdict_misses;
+    struct dns_cache *dns_cache;
+    uint64_t dns_hits;
+    uint64_t dns_misses;
+    struct resolving_entry *resolving;
+    uint32_t resolved_seq;
+    uint32_t resolved_applied;
+    struct held_packet *held;
+    int held_count;
+    int held_releasing;
 };
 
 struct arguments {
@@ -206,6 +270,91 @@ struct ng_session {
     struct ng_session *next;
 };
 
+struct ng_ring {
+    uint8_t *base;
+    size_t capacity;
+    int eventfd;
+};
+
+struct ng_hosts {
+    uint8_t *base;
+    size_t size;
+    uint32_t count;
+    uint32_t nodes;
+    uint32_t labels;
+    uint32_t filter;
+    uint32_t blocks;
+    uint32_t k;
+    struct ng_hosts *retired;
+};
+
+struct policy_uid {
+    int used;
+    jint uid;
+    int flags;
+};
+
+struct policy_rule {
+    int used;
+    jint uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport;
+    uint8_t daddr[16];
+    int block;
+    long long expires; // wall clock milliseconds
+};
+
+struct policy_forward {
+    uint16_t dport;
+    jint ruid;
+    struct allowed redirect;
+};
+
+struct resolving_entry {
+    uint32_t seq;
+    long long time;
+    uint8_t version;
+    uint8_t daddr[16];
+};
+
+struct held_packet {
+    uint32_t seq;
+    long long time;
+    size_t length;
+    struct held_packet *next;
+    uint8_t data[];
+};
+
+struct ng_policy {
+    int filter;
+    int filter_udp;
+    int log;
+    jint self;
+    int uid_size;
+    struct policy_uid *uids;
+    int rule_size;
+    struct policy_rule *rules;
+    int forward_count;
+    struct policy_forward *forwards;
+    int name_count;
+    uint32_t *names; // sorted hashes of the query names with address rules
+    struct ng_policy *retired;
+};
+
+struct verdict_entry {
+    uint32_t generation;
+    long long time;
+    jint uid;
+    uint8_t version;
+    uint8_t protocol;
+    uint16_t dport;
+    uint8_t daddr[16];
+    int allowed;
+    int redirected;
+    struct allowed redirect;
+};
+
 struct uid_cache_entry {
     uint8_t version;
     uint8_t protocol;
@@ -263,7 +412,49 @@ typedef struct pcaprec_hdr_s {
 #define DNS_HTTPS 65
 
 #define DNS_QNAME_MAX 255
+#define DNS_QUERY_MAX 512 // bytes, question of a blocked query
 #define DNS_TTL (10 * 60) // seconds
+#define DNS_ANSWERS_MAX 32 // per response
+#define DNS_CNAME 5
+#define DNS_SOA 6
+#define DNS_OPT 41
+
+#define DNS_CACHE_BUCKETS 256 // power of two
+#define DNS_CACHE_MEMORY (256 * 1024) // bytes
+#define DNS_CACHE_RESPONSE_MAX 1280 // bytes
+#define DNS_CACHE_TTL_MAX (60 * 60) // seconds
+#define DNS_CACHE_NEGATIVE_TTL 60 // seconds, without SOA record
+
+// Addresses and aliases of a response, delivered together
+struct dns_answer {
+    uint16_t qtype;
+    int ttl;
+    char aname[DNS_QNAME_MAX + 1];
+    char resource[DNS_QNAME_MAX + 1]; // address or canonical name
+};
+
+struct dns_cache_entry {
+    struct dns_cache_entry *next; // bucket
+    struct dns_cache_entry *lru_prev;
+    struct dns_cache_entry *lru_next;
+    uint32_t hash;
+    uint16_t qtype;
+    uint16_t qclass;
+    long long time; // milliseconds
+    uint32_t ttl; // seconds
+    size_t size; // bytes allocated
+    size_t length;
+    char *qname;
+    uint8_t response[];
+};
+
+struct dns_cache {
+    struct dns_cache_entry *bucket[DNS_CACHE_BUCKETS];
+    struct dns_cache_entry *lru_head; // most recently used
+    struct dns_cache_entry *lru_tail;
+    size_t memory;
+    int count;
+};
 
 struct dns_header {
     uint16_t id; // identification number
@@ -382,8 +573,27 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
 
 int32_t get_qname(const uint8_t *data, const size_t datalen, uint16_t off, char *qname);
 
-void parse_dns_response(const struct arguments *args, const struct ng_session *session,
-                        const uint8_t *data, size_t *datalen);
+size_t get_dns_blocked(const struct arguments *args,
+                       const uint8_t *data, size_t datalen,
+                       uint8_t *response, size_t size,
+                       char *qname, uint16_t *qtype);
+
+void log_dns_blocked(const struct arguments *args, int version, int protocol,
+                     const char *source, uint16_t sport, const char *dest, uint16_t dport,
+                     uint16_t qtype, const char *qname, int rcode);
+
+int parse_dns_response(const struct arguments *args, const struct ng_session *session,
+                       const uint8_t *data, size_t *datalen);
+
+void init_dns_cache(struct context *ctx);
+
+void free_dns_cache(struct context *ctx);
+
+size_t get_dns_cached(const struct arguments *args,
+                      const uint8_t *data, size_t datalen,
+                      uint8_t *response, size_t size);
+
+void put_dns_cached(const struct arguments *args, const uint8_t *data, size_t datalen);
 
 uint32_t get_send_window(const struct tcp_session *cur);
 
@@ -404,6 +614,104 @@ void handle_ip(const struct arguments *args,
                const int epoll_fd,
                int sessions, int maxsessions);
 
+struct ng_policy *new_policy(int uids, int rules, int forwards, int names);
+
+struct ng_policy *copy_policy(const struct ng_policy *policy, int rules);
+
+void free_policy(struct ng_policy *policy);
+
+void add_policy_uid(struct ng_policy *policy, jint uid, int flags);
+
+void add_policy_rule(struct ng_policy *policy,
+                     jint uid, uint8_t version, uint8_t protocol, uint16_t dport,
+                     const uint8_t *daddr, int block, long long expires);
+
+struct allowed *is_policy_allowed(const struct ng_policy *policy,
+                                  jint uid, uint8_t version, uint8_t protocol,
+                                  const void *daddr, uint16_t dport);
+
+struct allowed *get_policy_forward(const struct ng_policy *policy, int index, uint16_t dport);
+
+uint32_t get_policy_name_hash(const char *name);
+
+int has_policy_name(const struct ng_policy *policy, const char *name);
+
+void set_policy(struct context *ctx, struct ng_policy *policy);
+
+void free_retired_policies(struct context *ctx);
+
+struct ng_hosts *open_hosts(const char *path);
+
+void close_hosts(struct ng_hosts *hosts);
+
+int is_hosts_blocked(const struct ng_hosts *hosts, const char *name);
+
+void set_hosts(struct context *ctx, struct ng_hosts *hosts);
+
+void free_retired_hosts(struct context *ctx);
+
+struct ng_ring *init_ring(uint8_t *base, size_t size);
+
+void free_ring(struct ng_ring *ring);
+
+uint64_t wait_ring(struct ng_ring *ring, int timeout);
+
+void release_ring(struct ng_ring *ring, uint64_t tail);
+
+void wakeup_ring(struct ng_ring *ring);
+
+uint64_t get_ring_drops(struct ng_ring *ring);
+
+int ring_packet(const struct arguments *args,
+                jint version, jint protocol, const char *flags,
+                const char *source, jint sport, const char *dest, jint dport,
+                const char *data, jint uid, jboolean allowed);
+
+int ring_usage(const struct arguments *args, jint version, jint protocol,
+               const char *daddr, jint dport, jint uid, jlong sent, jlong received);
+
+int ring_resolved(const struct arguments *args, uint32_t seq,
+                  const char *qname, const struct dns_answer *answers, int count);
+
+void queue_packet(const struct arguments *args,
+                  jint version, jint protocol, const char *flags,
+                  const char *source, jint sport, const char *dest, jint dport,
+                  const char *data, jint uid, jboolean allowed);
+
+uint64_t hist_now();
+
+void hist_record(int id, uint64_t start);
+
+void get_histograms(jlong *values);
+
+void init_verdict_cache(struct context *ctx);
+
+void free_verdict_cache(struct context *ctx);
+
+struct verdict_entry *get_verdict(const struct arguments *args,
+                                  jint uid, uint8_t version, uint8_t protocol,
+                                  const void *daddr, uint16_t dport);
+
+void put_verdict(const struct arguments *args,
+                 jint uid, uint8_t version, uint8_t protocol,
+                 const void *daddr, uint16_t dport,
+                 uint32_t generation, int allowed, const struct allowed *redirect);
+
+void init_resolving(struct context *ctx);
+
+void free_resolving(struct context *ctx);
+
+void clear_resolving(struct context *ctx);
+
+uint32_t mark_resolving(const struct arguments *args,
+                        const char *qname, const struct dns_answer *answers, int count);
+
+uint32_t is_resolving(const struct arguments *args, uint8_t version, const void *daddr);
+
+int hold_resolving(const struct arguments *args, uint32_t seq, const uint8_t *pkt, size_t length);
+
+int release_resolving(const struct arguments *args, int epoll_fd, int sessions, int maxsessions);
+
 jboolean handle_icmp(const struct arguments *args,
                      const uint8_t *pkt, size_t length,
                      const uint8_t *payload,
@@ -509,7 +817,7 @@ void log_android(int prio, const char *fmt, ...);
 void log_packet(const struct arguments *args, jobject jpacket);
 
 void dns_resolved(const struct arguments *args,
-                  const char *qname, const char *aname, const char *resource, int ttl);
+                  const char *qname, const struct dns_answer *answers, int count);
 
 jboolean is_domain_blocked(const struct arguments *args, const char *name);
 
@@ -523,6 +831,10 @@ jint get_uid_q(const struct arguments *args,
 
 struct allowed *is_address_allowed(const struct arguments *args, jobject objPacket);
 
+jint is_address_allowed_raw(const struct arguments *args,
+                            jint version, jint protocol, const void *daddr, jint dport,
+                            jint uid, jboolean loggable);
+
 jobject create_packet(const struct arguments *args,
                       jint version,
                       jint protocol,
@@ -0,0 +1,286 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Policy compiled by ServiceSinkhole, used to decide on new flows without calling into Java
+// A policy is never modified after being published,
+// replaced policies are freed by the tunnel thread when no decision is in progress
+
+static struct allowed policy_allow;
+
+static long long get_wall_ms() {
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    return tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+}
+
+static int policy_size(int count) {
+    int size = 16;
+    while (size < count * 2)
+        size <<= 1;
+    return size;
+}
+
+static uint32_t policy_hash(jint uid, uint8_t version, uint8_t protocol,
+                            const uint8_t *daddr, uint16_t dport) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    h = (h ^ (uint32_t) uid) * 16777619u;
+    h = (h ^ version) * 16777619u;
+    h = (h ^ protocol) * 16777619u;
+    h = (h ^ dport) * 16777619u;
+    if (daddr != NULL) {
+        int len = (version == 4 ? 4 : 16);
+        for (int i = 0; i < len; i++)
+            h = (h ^ daddr[i]) * 16777619u;
+    }
+    return h;
+}
+
+struct ng_policy *new_policy(int uids, int rules, int forwards, int names) {
+    struct ng_policy *policy = ng_calloc(1, sizeof(struct ng_policy), "policy");
+    policy->uid_size = policy_size(uids);
+    policy->uids = ng_calloc((size_t) policy->uid_size, sizeof(struct policy_uid), "policy uids");
+    policy->rule_size = policy_size(rules);
+    policy->rules = ng_calloc((size_t) policy->rule_size, sizeof(struct policy_rule), "policy rules");
+    policy->forward_count = forwards;
+    if (forwards > 0)
+        policy->forwards = ng_calloc((size_t) forwards, sizeof(struct policy_forward), "policy forwards");
+    policy->name_count = names;
+    if (names > 0)
+        policy->names = ng_calloc((size_t) names, sizeof(uint32_t), "policy names");
+    return policy;
+}
+
+// Copy with room for more rules, without the expired rules
+struct ng_policy *copy_policy(const struct ng_policy *policy, int rules) {
+    long long now = get_wall_ms();
+    int active = 0;
+    for (int i = 0; i < policy->rule_size; i++)
+        if (policy->rules[i].used && policy->rules[i].expires > now)
+            active++;
+
+    // Half the size gives the same table size, so the uids can be copied as they are
+    struct ng_policy *copy = new_policy(policy->uid_size / 2, active + rules,
+                                        policy->forward_count, policy->name_count);
+    copy->filter = policy->filter;
+    copy->filter_udp = policy->filter_udp;
+    copy->log = policy->log;
+    copy->self = policy->self;
+
+    memcpy(copy->uids, policy->uids, (size_t) copy->uid_size * sizeof(struct policy_uid));
+
+    if (copy->forward_count > 0)
+        memcpy(copy->forwards, policy->forwards,
+               (size_t) copy->forward_count * sizeof(struct policy_forward));
+    if (copy->name_count > 0)
+        memcpy(copy->names, policy->names, (size_t) copy->name_count * sizeof(uint32_t));
+
+    for (int i = 0; i < policy->rule_size; i++) {
+        const struct policy_rule *r = &policy->rules[i];
+        if (r->used && r->expires > now)
+            add_policy_rule(copy, r->uid, r->version, r->protocol, r->dport,
+                            r->daddr, r->block, r->expires);
+    }
+
+    return copy;
+}
+
+void free_policy(struct ng_policy *policy) {
+    while (policy != NULL) {
+        struct ng_policy *next = policy->retired;
+        ng_free(policy->uids, __FILE__, __LINE__);
+        ng_free(policy->rules, __FILE__, __LINE__);
+        if (policy->forwards != NULL)
+            ng_free(policy->forwards, __FILE__, __LINE__);
+        if (policy->names != NULL)
+            ng_free(policy->names, __FILE__, __LINE__);
+        ng_free(policy, __FILE__, __LINE__);
+        policy = next;
+    }
+}
+
+void add_policy_uid(struct ng_policy *policy, jint uid, int flags) {
+    uint32_t i = policy_hash(uid, 0, 0, NULL, 0) & (policy->uid_size - 1);
+    while (policy->uids[i].used && policy->uids[i].uid != uid)
+        i = (i + 1) & (policy->uid_size - 1);
+    policy->uids[i].used = 1;
+    policy->uids[i].uid = uid;
+    policy->uids[i].flags = flags;
+}
+
+void add_policy_rule(struct ng_policy *policy,
+                     jint uid, uint8_t version, uint8_t protocol, uint16_t dport,
+                     const uint8_t *daddr, int block, long long expires) {
+    uint32_t i = policy_hash(uid, version, protocol, daddr, dport) & (policy->rule_size - 1);
+    struct policy_rule *r;
+    while ((r = &policy->rules[i])->used &&
+           !(r->uid == uid && r->version == version && r->protocol == protocol &&
+             r->dport == dport && memcmp(r->daddr, daddr, 16) == 0))
+        i = (i + 1) & (policy->rule_size - 1);
+    r->used = 1;
+    r->uid = uid;
+    r->version = version;
+    r->protocol = protocol;
+    r->dport = dport;
+    memcpy(r->daddr, daddr, 16);
+    r->block = block;
+    r->expires = expires;
+}
+
+static int get_policy_uid(const struct ng_policy *policy, jint uid) {
+    uint32_t i = policy_hash(uid, 0, 0, NULL, 0) & (policy->uid_size - 1);
+    while (policy->uids[i].used) {
+        if (policy->uids[i].uid == uid)
+            return policy->uids[i].flags;
+        i = (i + 1) & (policy->uid_size - 1);
+    }
+    return 0;
+}
+
+static const struct policy_rule *get_policy_rule(const struct ng_policy *policy,
+                                                 jint uid, uint8_t version, uint8_t protocol,
+                                                 const void *daddr, uint16_t dport) {
+    // Only TCP and UDP have port numbers
+    if (protocol != IPPROTO_TCP && protocol != IPPROTO_UDP)
+        dport = 0;
+
+    uint8_t addr[16];
+    memset(addr, 0, sizeof(addr));
+    memcpy(addr, daddr, version == 4 ? 4 : 16);
+
+    uint32_t i = policy_hash(uid, version, protocol, addr, dport) & (policy->rule_size - 1);
+    const struct policy_rule *r;
+    while ((r = &policy->rules[i])->used) {
+        if (r->uid == uid && r->version == version && r->protocol == protocol &&
+            r->dport == dport && memcmp(r->daddr, addr, 16) == 0)
+            return r;
+        i = (i + 1) & (policy->rule_size - 1);
+    }
+    return NULL;
+}
+
+static int is_supported(uint8_t protocol) {
+    return (protocol == IPPROTO_ICMP ||
+            protocol == IPPROTO_ICMPV6 ||
+            protocol == IPPROTO_TCP ||
+            protocol == IPPROTO_UDP);
+}
+
+// Same decisions as ServiceSinkhole.isAddressAllowed
+struct allowed *is_policy_allowed(const struct ng_policy *policy,
+                                  jint uid, uint8_t version, uint8_t protocol,
+                                  const void *daddr, uint16_t dport) {
+    int allowed = 0;
+    if (policy->filter) {
+        int flags = get_policy_uid(policy, uid);
+        if (protocol == IPPROTO_UDP && !policy->filter_udp)
+            allowed = 1; // unfiltered UDP
+        else if (uid < 2000 && !(flags & POLICY_UID_KNOWN) && is_supported(protocol))
+            allowed = 1; // unknown system traffic
+        else if (uid == policy->self)
+            allowed = 1;
+        else {
+            const struct policy_rule *rule =
+                    get_policy_rule(policy, uid, version, protocol, daddr, dport);
+            if (rule != NULL && rule->expires > get_wall_ms()) {
+                allowed = !rule->block;
+                log_android(ANDROID_LOG_INFO, "Filtering uid %d v%d p%d port %d allowed %d",
+                            uid, version, protocol, dport, allowed);
+            } else
+                allowed = ((flags & POLICY_UID_ALLOWED) != 0);
+        }
+    }
+
+    if (!allowed)
+        return NULL;
+
+    for (int i = 0; i < policy->forward_count; i++)
+        if (policy->forwards[i].dport == dport) {
+            if (policy->forwards[i].ruid == uid)
+                break;
+            return &policy->forwards[i].redirect;
+        }
+
+    *policy_allow.raddr = 0;
+    policy_allow.rport = 0;
+    return &policy_allow;
+}
+
+struct allowed *get_policy_forward(const struct ng_policy *policy, int index, uint16_t dport) {
+    // The index comes from the Java policy, which might just have been replaced
+    if (index < 0 || index >= policy->forward_count || policy->forwards[index].dport != dport)
+        return NULL;
+    return &policy->forwards[index].redirect;
+}
+
+// Same hash as DomainRules.hash
+uint32_t get_policy_name_hash(const char *name) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    for (const uint8_t *c = (const uint8_t *) name; *c; c++)
+        h = (h ^ *c) * 16777619u;
+    return h;
+}
+
+// A hash collision only makes a flow wait for records it does not need
+int has_policy_name(const struct ng_policy *policy, const char *name) {
+    uint32_t h = get_policy_name_hash(name);
+    int lo = 0;
+    int hi = policy->name_count - 1;
+    while (lo <= hi) {
+        int mid = (lo + hi) >> 1;
+        if (policy->names[mid] < h)
+            lo = mid + 1;
+        else if (policy->names[mid] > h)
+            hi = mid - 1;
+        else
+            return 1;
+    }
+    return 0;
+}
+
+void set_policy(struct context *ctx, struct ng_policy *policy) {
+    if (pthread_mutex_lock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct ng_policy *old = ctx->policy;
+    __atomic_store_n(&ctx->policy, policy, __ATOMIC_RELEASE);
+    if (old != NULL) {
+        old->retired = ctx->policy_retired;
+        ctx->policy_retired = old;
+    }
+
+    if (pthread_mutex_unlock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+}
+
+void free_retired_policies(struct context *ctx) {
+    if (pthread_mutex_lock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+    struct ng_policy *retired = ctx->policy_retired;
+    ctx->policy_retired = NULL;
+
+    if (pthread_mutex_unlock(&ctx->policy_lock))
+        log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+
+    free_policy(retired);
+}
@@ -0,0 +1,185 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+
+#include "netguard.h"
+
+// Addresses of resolved records not applied to the policy yet, only accessed from the tunnel thread
+// Java applies records in order and reports the last sequence number applied
+// New flows to such addresses are held until then, instead of deciding with outdated rules
+
+void init_resolving(struct context *ctx) {
+    ctx->resolving = ng_calloc(RESOLVING_SIZE, sizeof(struct resolving_entry), "resolving");
+    ctx->resolved_seq = 0;
+    ctx->resolved_applied = 0;
+    ctx->held = NULL;
+    ctx->held_count = 0;
+    ctx->held_releasing = 0;
+}
+
+void free_resolving(struct context *ctx) {
+    clear_resolving(ctx);
+    if (ctx->resolving != NULL)
+        ng_free(ctx->resolving, __FILE__, __LINE__);
+    ctx->resolving = NULL;
+}
+
+void clear_resolving(struct context *ctx) {
+    struct held_packet *h = ctx->held;
+    while (h != NULL) {
+        struct held_packet *p = h;
+        h = h->next;
+        ng_free(p, __FILE__, __LINE__);
+    }
+    ctx->held = NULL;
+    __atomic_store_n(&ctx->held_count, 0, __ATOMIC_RELEASE);
+}
+
+static struct resolving_entry *resolving_slot(const struct context *ctx,
+                                              uint8_t version, const uint8_t *daddr) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    h = (h ^ version) * 16777619u;
+    int len = (version == 4 ? 4 : 16);
+    for (int i = 0; i < len; i++)
+        h = (h ^ daddr[i]) * 16777619u;
+    return &ctx->resolving[h & (RESOLVING_SIZE - 1)];
+}
+
+// Returns the sequence number of the records
+uint32_t mark_resolving(const struct arguments *args,
+                        const char *qname, const struct dns_answer *answers, int count) {
+    struct context *ctx = args->ctx;
+    uint32_t seq = ++ctx->resolved_seq;
+    if (seq == 0)
+        seq = ++ctx->resolved_seq;
+
+    // Addresses only need to wait for address rules of the query name
+    struct ng_policy *policy = __atomic_load_n(&ctx->policy, __ATOMIC_ACQUIRE);
+    if (ctx->resolving == NULL || policy == NULL || !policy->filter ||
+        !has_policy_name(policy, qname))
+        return seq;
+
+    long long now = get_ms();
+    for (int i = 0; i < count; i++) {
+        uint8_t version;
+        uint8_t daddr[16];
+        memset(daddr, 0, sizeof(daddr));
+        if (answers[i].qtype == DNS_QTYPE_A && inet_pton(AF_INET, answers[i].resource, daddr) == 1)
+            version = 4;
+        else if (answers[i].qtype == DNS_QTYPE_AAAA &&
+                 inet_pton(AF_INET6, answers[i].resource, daddr) == 1)
+            version = 6;
+        else
+            continue;
+
+        // Overwrite whatever was in the slot
+        struct resolving_entry *r = resolving_slot(ctx, version, daddr);
+        r->seq = seq;
+        r->time = now;
+        r->version = version;
+        memcpy(r->daddr, daddr, sizeof(daddr));
+    }
+
+    return seq;
+}
+
+// Returns the sequence number to wait for, or zero if the address was applied
+uint32_t is_resolving(const struct arguments *args, uint8_t version, const void *daddr) {
+    struct context *ctx = args->ctx;
+    if (ctx->resolving == NULL)
+        return 0;
+
+    struct resolving_entry *r = resolving_slot(ctx, version, daddr);
+    uint32_t applied = __atomic_load_n(&ctx->resolved_applied, __ATOMIC_ACQUIRE);
+    if (r->seq != 0 && (int32_t) (r->seq - applied) > 0 &&
+        r->time + RESOLVING_TTL > get_ms() &&
+        r->version == version &&
+        memcmp(r->daddr, daddr, version == 4 ? 4 : 16) == 0) {
+        return r->seq;
+    }
+
+    return 0;
+}
+
+// Keeps the first packet of a new flow until the address rules were applied
+// Returns zero when the packet should be decided now
+int hold_resolving(const struct arguments *args, uint32_t seq, const uint8_t *pkt, size_t length) {
+    struct context *ctx = args->ctx;
+    if (ctx->held_releasing || ctx->held_count >= RESOLVING_HELD)
+        return 0;
+
+    struct held_packet *h = ng_malloc(sizeof(struct held_packet) + length, "held");
+    if (h == NULL)
+        return 0;
+    h->seq = seq;
+    h->time = get_ms();
+    h->length = length;
+    h->next = NULL;
+    memcpy(h->data, pkt, length);
+
+    // Keep packets in order
+    struct held_packet **last = &ctx->held;
+    while (*last != NULL)
+        last = &(*last)->next;
+    *last = h;
+    __atomic_add_fetch(&ctx->held_count, 1, __ATOMIC_ACQ_REL);
+
+    log_android(ANDROID_LOG_DEBUG, "Held packet seq %u count %d", seq, ctx->held_count);
+    return 1;
+}
+
+// Handles held packets which were applied or waited long enough
+// Returns the number of packets still held
+int release_resolving(const struct arguments *args, int epoll_fd, int sessions, int maxsessions) {
+    struct context *ctx = args->ctx;
+    if (ctx->held == NULL)
+        return 0;
+
+    uint32_t applied = __atomic_load_n(&ctx->resolved_applied, __ATOMIC_ACQUIRE);
+    long long now = get_ms();
+
+    // Unlink first, handling a packet should not hold it again
+    struct held_packet *released = NULL;
+    struct held_packet **tail = &released;
+    struct held_packet **p = &ctx->held;
+    while (*p != NULL) {
+        struct held_packet *h = *p;
+        if ((int32_t) (h->seq - applied) <= 0 || h->time + RESOLVING_TTL <= now) {
+            *p = h->next;
+            h->next = NULL;
+            *tail = h;
+            tail = &h->next;
+            __atomic_sub_fetch(&ctx->held_count, 1, __ATOMIC_ACQ_REL);
+        } else
+            p = &h->next;
+    }
+
+    ctx->held_releasing = 1;
+    while (released != NULL) {
+        struct held_packet *h = released;
+        released = h->next;
+        log_android(ANDROID_LOG_DEBUG, "Released packet seq %u applied %u", h->seq, applied);
+        handle_ip(args, h->data, h->length, epoll_fd, sessions, maxsessions);
+        ng_free(h, __FILE__, __LINE__);
+    }
+    ctx->held_releasing = 0;
+
+    return ctx->held_count;
+}
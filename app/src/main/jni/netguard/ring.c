@@ -0,0 +1,269 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Single producer, single consumer event ring in a direct buffer shared with Java (EventRing)
+// The tunnel thread appends records and never blocks, records not fitting are dropped
+// Header: head (written by native), tail (written by Java), drops, all 64 bits
+// Record: type and total length (both 32 bits, length multiple of 8), followed by the fields
+
+static int ring_string(uint8_t *record, size_t *off, size_t max, const char *value) {
+    size_t len = (value == NULL ? 0 : strlen(value));
+    if (*off + 2 + len > max)
+        return -1;
+    uint16_t l = (uint16_t) len;
+    memcpy(record + *off, &l, 2);
+    if (len > 0)
+        memcpy(record + *off + 2, value, len);
+    *off += 2 + len;
+    return 0;
+}
+
+static void ring_put(struct context *ctx, uint8_t *record, size_t length, uint32_t type) {
+    struct ng_ring *ring = ctx->ring;
+    uint64_t *header = (uint64_t *) ring->base;
+    uint8_t *data = ring->base + RING_HEADER;
+
+    length = (length + 7) & ~((size_t) 7);
+    uint32_t l = (uint32_t) length;
+    memcpy(record, &type, 4);
+    memcpy(record + 4, &l, 4);
+
+    uint64_t head = __atomic_load_n(&header[0], __ATOMIC_RELAXED);
+    uint64_t tail = __atomic_load_n(&header[1], __ATOMIC_ACQUIRE);
+
+    // Records do not wrap, the rest of the ring is padded instead
+    size_t off = (size_t) (head & (ring->capacity - 1));
+    size_t pad = (ring->capacity - off < length ? ring->capacity - off : 0);
+    if (head + pad + length - tail > ring->capacity) {
+        __atomic_add_fetch(&header[2], 1, __ATOMIC_RELAXED);
+        return;
+    }
+
+    if (pad > 0) {
+        uint32_t ptype = RING_PAD;
+        uint32_t plen = (uint32_t) pad;
+        memcpy(data + off, &ptype, 4);
+        memcpy(data + off + 4, &plen, 4);
+        off = 0;
+    }
+    memcpy(data + off, record, length);
+
+    // Publish, then wake the consumer if it could have been waiting for this record
+    __atomic_store_n(&header[0], head + pad + length, __ATOMIC_SEQ_CST);
+    if (__atomic_load_n(&header[1], __ATOMIC_SEQ_CST) == head) {
+        uint64_t one = 1;
+        if (write(ring->eventfd, &one, sizeof(one)) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Ring signal error %d: %s", errno, strerror(errno));
+    }
+}
+
+int ring_packet(const struct arguments *args,
+                jint version, jint protocol, const char *flags,
+                const char *source, jint sport, const char *dest, jint dport,
+                const char *data, jint uid, jboolean allowed) {
+    if (args->ctx->ring == NULL)
+        return 0;
+
+    struct timeval tv;
+    gettimeofday(&tv, NULL);
+    int64_t t = tv.tv_sec * 1000LL + tv.tv_usec / 1000;
+    int32_t ints[6] = {version, protocol, sport, dport, uid, allowed};
+
+    uint8_t record[RING_RECORD_MAX];
+    size_t off = 8;
+    memcpy(record + off, &t, 8);
+    off += 8;
+    memcpy(record + off, ints, sizeof(ints));
+    off += sizeof(ints);
+    if (ring_string(record, &off, sizeof(record), flags) ||
+        ring_string(record, &off, sizeof(record), source) ||
+        ring_string(record, &off, sizeof(record), dest) ||
+        ring_string(record, &off, sizeof(record), data)) {
+        log_android(ANDROID_LOG_ERROR, "Ring packet record too large");
+        return 1;
+    }
+
+    ring_put(args->ctx, record, off, RING_PACKET);
+    return 1;
+}
+
+int ring_usage(const struct arguments *args, jint version, jint protocol,
+               const char *daddr, jint dport, jint uid, jlong sent, jlong received) {
+    if (args->ctx->ring == NULL)
+        return 0;
+
+    int64_t t = time(NULL) * 1000LL;
+    int32_t ints[4] = {version, protocol, dport, uid};
+    int64_t bytes[2] = {sent, received};
+
+    uint8_t record[RING_RECORD_MAX];
+    size_t off = 8;
+    memcpy(record + off, &t, 8);
+    off += 8;
+    memcpy(record + off, ints, sizeof(ints));
+    off += sizeof(ints);
+    memcpy(record + off, bytes, sizeof(bytes));
+    off += sizeof(bytes);
+    if (ring_string(record, &off, sizeof(record), daddr)) {
+        log_android(ANDROID_LOG_ERROR, "Ring usage record too large");
+        return 1;
+    }
+
+    ring_put(args->ctx, record, off, RING_USAGE);
+    return 1;
+}
+
+// One record per response, records of responses with many answers are split
+int ring_resolved(const struct arguments *args, uint32_t seq,
+                  const char *qname, const struct dns_answer *answers, int count) {
+    if (args->ctx->ring == NULL)
+        return 0;
+
+    int64_t t = time(NULL) * 1000LL;
+
+    uint8_t record[RING_RECORD_MAX];
+    size_t off = 8;
+    memcpy(record + off, &t, 8);
+    off += 12;
+    memcpy(record + off, &seq, 4);
+    off += 4;
+    if (ring_string(record, &off, sizeof(record), qname)) {
+        log_android(ANDROID_LOG_ERROR, "Ring resolved record too large");
+        return 1;
+    }
+    size_t start = off;
+
+    int32_t n = 0;
+    for (int i = 0; i < count; i++) {
+        size_t roff = off;
+        int32_t ints[2] = {answers[i].ttl, answers[i].qtype};
+        if (roff + sizeof(ints) <= sizeof(record)) {
+            memcpy(record + roff, ints, sizeof(ints));
+            roff += sizeof(ints);
+        } else
+            roff = sizeof(record);
+
+        if (roff < sizeof(record) &&
+            !ring_string(record, &roff, sizeof(record), answers[i].aname) &&
+            !ring_string(record, &roff, sizeof(record), answers[i].resource)) {
+            off = roff;
+            n++;
+            continue;
+        }
+
+        if (n == 0) {
+            log_android(ANDROID_LOG_ERROR, "Ring resolved record too large");
+            continue;
+        }
+
+        // Continue in a new record
+        memcpy(record + 16, &n, 4);
+        ring_put(args->ctx, record, off, RING_RESOLVED);
+        off = start;
+        n = 0;
+        i--;
+    }
+
+    if (n > 0) {
+        memcpy(record + 16, &n, 4);
+        ring_put(args->ctx, record, off, RING_RESOLVED);
+    }
+    return 1;
+}
+
+void queue_packet(const struct arguments *args,
+                  jint version, jint protocol, const char *flags,
+                  const char *source, jint sport, const char *dest, jint dport,
+                  const char *data, jint uid, jboolean allowed) {
+    if (!ring_packet(args, version, protocol, flags, source, sport, dest, dport, data, uid, allowed)) {
+        jobject objPacket = create_packet(
+                args, version, protocol, flags, source, sport, dest, dport, data, uid, allowed);
+        log_packet(args, objPacket);
+    }
+}
+
+struct ng_ring *init_ring(uint8_t *base, size_t size) {
+    size_t capacity = 1;
+    while (capacity * 2 <= size - RING_HEADER)
+        capacity *= 2;
+    if (capacity < RING_RECORD_MAX * 2) {
+        log_android(ANDROID_LOG_ERROR, "Ring size %d too small", size);
+        return NULL;
+    }
+
+    int fd = eventfd(0, EFD_NONBLOCK);
+    if (fd < 0) {
+        log_android(ANDROID_LOG_ERROR, "eventfd error %d: %s", errno, strerror(errno));
+        return NULL;
+    }
+
+    struct ng_ring *ring = ng_malloc(sizeof(struct ng_ring), "ring");
+    ring->base = base;
+    ring->capacity = capacity;
+    ring->eventfd = fd;
+    memset(base, 0, RING_HEADER);
+
+    log_android(ANDROID_LOG_WARN, "Ring capacity %d", capacity);
+    return ring;
+}
+
+void free_ring(struct ng_ring *ring) {
+    if (ring == NULL)
+        return;
+    if (close(ring->eventfd))
+        log_android(ANDROID_LOG_ERROR, "Close eventfd error %d: %s", errno, strerror(errno));
+    ng_free(ring, __FILE__, __LINE__);
+}
+
+uint64_t wait_ring(struct ng_ring *ring, int timeout) {
+    uint64_t *header = (uint64_t *) ring->base;
+    uint64_t head = __atomic_load_n(&header[0], __ATOMIC_SEQ_CST);
+    if (head != __atomic_load_n(&header[1], __ATOMIC_SEQ_CST))
+        return head;
+
+    struct pollfd pfd;
+    pfd.fd = ring->eventfd;
+    pfd.events = POLLIN;
+    pfd.revents = 0;
+    if (poll(&pfd, 1, timeout) > 0) {
+        uint64_t count;
+        if (read(ring->eventfd, &count, sizeof(count)) < 0 && errno != EAGAIN)
+            log_android(ANDROID_LOG_WARN, "Ring read error %d: %s", errno, strerror(errno));
+    }
+
+    return __atomic_load_n(&header[0], __ATOMIC_ACQUIRE);
+}
+
+void release_ring(struct ng_ring *ring, uint64_t tail) {
+    uint64_t *header = (uint64_t *) ring->base;
+    __atomic_store_n(&header[1], tail, __ATOMIC_SEQ_CST);
+}
+
+void wakeup_ring(struct ng_ring *ring) {
+    uint64_t one = 1;
+    if (write(ring->eventfd, &one, sizeof(one)) < 0)
+        log_android(ANDROID_LOG_WARN, "Ring wakeup error %d: %s", errno, strerror(errno));
+}
+
+uint64_t get_ring_drops(struct ng_ring *ring) {
+    uint64_t *header = (uint64_t *) ring->base;
+    return __atomic_load_n(&header[2], __ATOMIC_RELAXED);
+}
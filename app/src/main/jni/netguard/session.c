@@ -32,6 +32,7 @@ void clear(struct context *ctx) {
         ng_free(p, __FILE__, __LINE__);
     }
     ctx->ng_session = NULL;
+    clear_resolving(ctx);
 }
 
 void *handle_events(void *a) {
@@ -89,6 +90,21 @@ void *handle_events(void *a) {
     while (!args->ctx->stopping) {
         log_android(ANDROID_LOG_DEBUG, "Loop");
 
+        // No policy or hosts are in use here
+        free_retired_policies(args->ctx);
+        free_retired_hosts(args->ctx);
+
+        // Rules changed without restarting the tunnel
+        if (__atomic_exchange_n(&args->ctx->recheck, 0, __ATOMIC_ACQ_REL)) {
+            if (pthread_mutex_lock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+            check_allowed(args);
+
+            if (pthread_mutex_unlock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        }
+
         int recheck = 0;
         int timeout = EPOLL_TIMEOUT;
 
@@ -114,6 +130,18 @@ void *handle_events(void *a) {
         }
         int sessions = isessions + usessions + tsessions;
 
+        // Decide on new flows held for just resolved addresses
+        if (args->ctx->held != NULL) {
+            if (pthread_mutex_lock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_lock failed");
+
+            if (release_resolving(args, epoll_fd, sessions, maxsessions) > 0)
+                recheck = 1;
+
+            if (pthread_mutex_unlock(&args->ctx->lock))
+                log_android(ANDROID_LOG_ERROR, "pthread_mutex_unlock failed");
+        }
+
         // Check sessions
         long long ms = get_ms();
         if (ms - last_check > EPOLL_MIN_CHECK) {
@@ -282,6 +310,29 @@ void *handle_events(void *a) {
     return NULL;
 }
 
+static int is_session_allowed(const struct arguments *args,
+                              jint version, jint protocol,
+                              const char *source, jint sport,
+                              const char *dest, const void *daddr, jint dport,
+                              jint uid) {
+    // Sessions are checked without flags, so TCP is not logged
+    struct ng_policy *policy = __atomic_load_n(&args->ctx->policy, __ATOMIC_ACQUIRE);
+    if (policy != NULL) {
+        int allowed = (is_policy_allowed(policy, uid, version, protocol, daddr, dport) != NULL);
+        if (policy->log && protocol != IPPROTO_TCP && uid != policy->self)
+            queue_packet(args, version, protocol, "", source, sport, dest, dport, "", uid,
+                         (jboolean) allowed);
+        return allowed;
+    }
+
+    jint verdict = is_address_allowed_raw(args, version, protocol, daddr, dport, uid,
+                                          protocol != IPPROTO_TCP);
+    int allowed = ((verdict & VERDICT_ALLOWED) != 0);
+    if (verdict & VERDICT_LOG)
+        queue_packet(args, version, protocol, "", source, sport, dest, dport, "", uid, (jboolean) allowed);
+    return allowed;
+}
+
 void check_allowed(const struct arguments *args) {
     char source[INET6_ADDRSTRLEN + 1];
     char dest[INET6_ADDRSTRLEN + 1];
@@ -299,10 +350,8 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->icmp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->icmp.version, IPPROTO_ICMP, "",
-                        source, 0, dest, 0, "", s->icmp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (!is_session_allowed(args, s->icmp.version, IPPROTO_ICMP,
+                                        source, 0, dest, &s->icmp.daddr, 0, s->icmp.uid)) {
                     s->icmp.stop = 1;
                     log_android(ANDROID_LOG_WARN, "ICMP terminate %d uid %d",
                                 s->socket, s->icmp.uid);
@@ -319,10 +368,9 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->udp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->udp.version, IPPROTO_UDP, "",
-                        source, ntohs(s->udp.source), dest, ntohs(s->udp.dest), "", s->udp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (!is_session_allowed(args, s->udp.version, IPPROTO_UDP,
+                                        source, ntohs(s->udp.source), dest, &s->udp.daddr,
+                                        ntohs(s->udp.dest), s->udp.uid)) {
                     s->udp.state = UDP_FINISHING;
                     log_android(ANDROID_LOG_WARN, "UDP terminate session socket %d uid %d",
                                 s->socket, s->udp.uid);
@@ -351,10 +399,9 @@ void check_allowed(const struct arguments *args) {
                     inet_ntop(AF_INET6, &s->tcp.daddr.ip6, dest, sizeof(dest));
                 }
 
-                jobject objPacket = create_packet(
-                        args, s->tcp.version, IPPROTO_TCP, "",
-                        source, ntohs(s->tcp.source), dest, ntohs(s->tcp.dest), "", s->tcp.uid, 0);
-                if (is_address_allowed(args, objPacket) == NULL) {
+                if (!is_session_allowed(args, s->tcp.version, IPPROTO_TCP,
+                                        source, ntohs(s->tcp.source), dest, &s->tcp.daddr,
+                                        ntohs(s->tcp.dest), s->tcp.uid)) {
                     write_rst(args, &s->tcp);
                     log_android(ANDROID_LOG_WARN, "TCP terminate socket %d uid %d",
                                 s->socket, s->tcp.uid);
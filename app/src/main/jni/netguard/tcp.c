@@ -851,6 +851,7 @@ jboolean handle_tcp(const struct arguments *args,
             // Do not change the order of the conditions
 
             // Queue data to forward
+            size_t answered = 0;
             if (datalen) {
                 if (cur->socket < 0) {
                     log_android(ANDROID_LOG_ERROR, "%s data while local closed", session);
@@ -862,7 +863,36 @@ jboolean handle_tcp(const struct arguments *args,
                     write_rst(args, &cur->tcp);
                     return 0;
                 }
-                queue_tcp(args, tcphdr, session, &cur->tcp, data, datalen);
+
+                // Answer a complete query for a blocked name in order without forwarding it
+                if (ntohs(cur->tcp.dest) == 53 && cur->tcp.state == TCP_ESTABLISHED &&
+                    cur->tcp.forward == NULL &&
+                    tcphdr->ack && !tcphdr->syn && !tcphdr->fin && !tcphdr->rst &&
+                    ntohl(tcphdr->seq) == cur->tcp.remote_seq &&
+                    ntohl(tcphdr->ack_seq) == cur->tcp.local_seq &&
+                    datalen > 2 && ntohs(*((uint16_t *) data)) == datalen - 2) {
+                    uint8_t response[DNS_QUERY_MAX];
+                    char qname[DNS_QNAME_MAX + 1];
+                    uint16_t qtype;
+                    size_t rlen = get_dns_blocked(args, data + 2, (size_t) (datalen - 2),
+                                                  response + 2, sizeof(response) - 2,
+                                                  qname, &qtype);
+                    if (rlen > 0) {
+                        *((uint16_t *) response) = htons((uint16_t) rlen);
+                        // The answer acknowledges the query, unless it could not be written
+                        cur->tcp.remote_seq += datalen;
+                        if (write_data(args, &cur->tcp, response, rlen + 2) >= 0)
+                            answered = rlen + 2;
+                        else
+                            cur->tcp.remote_seq -= datalen;
+                        log_dns_blocked(args, cur->tcp.version, IPPROTO_TCP,
+                                        source, ntohs(cur->tcp.source), dest, ntohs(cur->tcp.dest),
+                                        qtype, qname, args->rcode);
+                    }
+                }
+
+                if (answered == 0)
+                    queue_tcp(args, tcphdr, session, &cur->tcp, data, datalen);
             }
 
             if (tcphdr->rst /* +ACK */) {
@@ -960,6 +990,12 @@ jboolean handle_tcp(const struct arguments *args,
                 }
             }
 
+            // The answer is sequenced after the acknowledgement was checked
+            if (answered > 0) {
+                cur->tcp.local_seq += answered;
+                cur->tcp.unconfirmed++;
+            }
+
             if (cur->tcp.state != oldstate ||
                 cur->tcp.local_seq != oldlocal ||
                 cur->tcp.remote_seq != oldremote)
@@ -130,8 +130,9 @@ void check_udp_socket(const struct arguments *args, const struct epoll_event *ev
                 s->udp.received += bytes;
 
                 // Process DNS response
-                if (ntohs(s->udp.dest) == 53)
-                    parse_dns_response(args, s, buffer, (size_t *) &bytes);
+                if (ntohs(s->udp.dest) == 53 &&
+                    !parse_dns_response(args, s, buffer, (size_t *) &bytes))
+                    put_dns_cached(args, buffer, (size_t) bytes);
 
                 // Forward to tun
                 if (write_udp(args, &s->udp, buffer, (size_t) bytes) < 0)
@@ -261,6 +262,44 @@ jboolean handle_udp(const struct arguments *args,
         return 0;
     }
 
+    // Answer queries for blocked or cached names without forwarding them
+    if (ntohs(udphdr->dest) == 53) {
+        uint8_t response[DNS_CACHE_RESPONSE_MAX];
+        char qname[DNS_QNAME_MAX + 1];
+        uint16_t qtype;
+        int blocked = 1;
+        size_t rlen = get_dns_blocked(args, data, datalen, response, DNS_QUERY_MAX,
+                                      qname, &qtype);
+        if (rlen == 0) {
+            blocked = 0;
+            rlen = get_dns_cached(args, data, datalen, response, sizeof(response));
+            if (rlen > 0)
+                parse_dns_response(args, NULL, response, &rlen);
+        }
+
+        if (rlen > 0) {
+            struct udp_session u;
+            memset(&u, 0, sizeof(struct udp_session));
+            u.version = version;
+            if (version == 4) {
+                u.saddr.ip4 = (__be32) ip4->saddr;
+                u.daddr.ip4 = (__be32) ip4->daddr;
+            } else {
+                memcpy(&u.saddr.ip6, &ip6->ip6_src, 16);
+                memcpy(&u.daddr.ip6, &ip6->ip6_dst, 16);
+            }
+            u.source = udphdr->source;
+            u.dest = udphdr->dest;
+
+            write_udp(args, &u, response, rlen);
+            if (blocked)
+                log_dns_blocked(args, version, IPPROTO_UDP,
+                                source, ntohs(udphdr->source), dest, ntohs(udphdr->dest),
+                                qtype, qname, args->rcode);
+            return 1;
+        }
+    }
+
     // Create new session if needed
     if (cur == NULL) {
         log_android(ANDROID_LOG_INFO, "UDP new session from %s/%u to %s/%u",
@@ -0,0 +1,106 @@
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015-2019 by Marcel Bokhorst (M66B)
+*/
+
+#include "netguard.h"
+
+// Verdict cache for new flows, only accessed from the tunnel thread
+// Entries are valid for the policy generation they were stored in
+
+void init_verdict_cache(struct context *ctx) {
+    ctx->verdict_cache = ng_calloc(VERDICT_CACHE_SIZE, sizeof(struct verdict_entry), "verdict");
+    ctx->verdict_generation = 0;
+    ctx->verdict_enabled = 0;
+    ctx->verdict_hits = 0;
+    ctx->verdict_misses = 0;
+}
+
+void free_verdict_cache(struct context *ctx) {
+    if (ctx->verdict_cache != NULL)
+        ng_free(ctx->verdict_cache, __FILE__, __LINE__);
+    ctx->verdict_cache = NULL;
+}
+
+static uint32_t verdict_hash(jint uid, uint8_t version, uint8_t protocol,
+                             const uint8_t *daddr, uint16_t dport) {
+    // FNV-1a
+    uint32_t h = 2166136261u;
+    h = (h ^ (uint32_t) uid) * 16777619u;
+    h = (h ^ version) * 16777619u;
+    h = (h ^ protocol) * 16777619u;
+    h = (h ^ dport) * 16777619u;
+    int len = (version == 4 ? 4 : 16);
+    for (int i = 0; i < len; i++)
+        h = (h ^ daddr[i]) * 16777619u;
+    return h;
+}
+
+static struct verdict_entry *verdict_slot(const struct arguments *args,
+                                          jint uid, uint8_t version, uint8_t protocol,
+                                          const void *daddr, uint16_t dport) {
+    uint32_t h = verdict_hash(uid, version, protocol, daddr, dport);
+    return &args->ctx->verdict_cache[h & (VERDICT_CACHE_SIZE - 1)];
+}
+
+struct verdict_entry *get_verdict(const struct arguments *args,
+                                  jint uid, uint8_t version, uint8_t protocol,
+                                  const void *daddr, uint16_t dport) {
+    struct context *ctx = args->ctx;
+    if (ctx->verdict_cache == NULL || !ctx->verdict_enabled)
+        return NULL;
+
+    struct verdict_entry *v = verdict_slot(args, uid, version, protocol, daddr, dport);
+    if (v->generation == __atomic_load_n(&ctx->verdict_generation, __ATOMIC_ACQUIRE) &&
+        v->time + VERDICT_TTL > get_ms() &&
+        v->uid == uid && v->version == version && v->protocol == protocol &&
+        v->dport == dport &&
+        memcmp(v->daddr, daddr, version == 4 ? 4 : 16) == 0) {
+        __atomic_add_fetch(&ctx->verdict_hits, 1, __ATOMIC_RELAXED);
+        return v;
+    }
+
+    __atomic_add_fetch(&ctx->verdict_misses, 1, __ATOMIC_RELAXED);
+    return NULL;
+}
+
+void put_verdict(const struct arguments *args,
+                 jint uid, uint8_t version, uint8_t protocol,
+                 const void *daddr, uint16_t dport,
+                 uint32_t generation, int allowed, const struct allowed *redirect) {
+    struct context *ctx = args->ctx;
+    if (ctx->verdict_cache == NULL || !ctx->verdict_enabled)
+        return;
+
+    // Overwrite whatever was in the slot
+    struct verdict_entry *v = verdict_slot(args, uid, version, protocol, daddr, dport);
+    v->generation = generation;
+    v->time = get_ms();
+    v->uid = uid;
+    v->version = version;
+    v->protocol = protocol;
+    v->dport = dport;
+    memset(v->daddr, 0, sizeof(v->daddr));
+    memcpy(v->daddr, daddr, version == 4 ? 4 : 16);
+    v->allowed = allowed;
+    if (redirect == NULL)
+        v->redirected = 0;
+    else {
+        v->redirected = 1;
+        memcpy(&v->redirect, redirect, sizeof(struct allowed));
+    }
+}